@@ -0,0 +1,342 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import tv.studer.smssync.CursorToMessage;
+import tv.studer.smssync.CursorToMessage.ConversionResult;
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.filter.SpooledOutputStream;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.SerializedMessage;
+import com.fsck.k9.mail.store.ImapStore;
+import com.fsck.k9.mail.store.imap.ImapCommandFuture;
+import com.fsck.k9.mail.store.imap.ImapCommandPipeline;
+import com.fsck.k9.security.LocalKeyStore;
+
+/**
+ * Measures the backup throughput against a {@link FakeImapServer} running in
+ * the app's process, so no IMAP account is needed.
+ * <p>
+ * Synthetic SMS are converted with {@link CursorToMessage}, serialized and
+ * uploaded with {@link Folder#appendMessages(Message[])} in batches, like a
+ * backup does. The report contains the time spent in each phase, messages
+ * and bytes per second and the p50/p99 latency from the start of a batch's
+ * upload to the acknowledgement of each message.
+ * </p>
+ * <p>
+ * With <code>pipeline</code> the messages are sent as one APPEND command
+ * each through an {@link ImapCommandPipeline} instead, without waiting for
+ * the responses of the batch's earlier commands. The number of messages the
+ * folder reports afterwards comes from the untagged EXISTS responses
+ * received through the pipeline.
+ * </p>
+ * <p>
+ * Run it with
+ * </p>
+ *
+ * <pre>
+ * adb shell am instrument -w -e messages 2000 -e latency 150 \
+ *     tv.studer.smssync.benchmark/.BackupBenchmark
+ * </pre>
+ * <p>
+ * Arguments (all optional):
+ * </p>
+ * <ul>
+ * <li><code>messages</code>: number of SMS to back up (default 1000)</li>
+ * <li><code>batch</code>: messages per APPEND request (default 10, the
+ * default of the "max messages per request" setting)</li>
+ * <li><code>latency</code>: round trip time in milliseconds (default 0)</li>
+ * <li><code>bandwidth</code>: bandwidth per direction in KiB/s (default 0 for
+ * unlimited)</li>
+ * <li><code>uidplus</code>, <code>literalplus</code>,
+ * <code>multiappend</code>, <code>compress</code>: server extensions (default
+ * true, true, false, false)</li>
+ * <li><code>tls</code>: connect with implicit TLS (default false)</li>
+ * <li><code>nio</code>: use the NIO SSL transport, implies <code>tls</code>
+ * (default false)</li>
+ * <li><code>socketbuffer</code>: kernel socket buffer size in KiB (default 0
+ * for the system default)</li>
+ * <li><code>streambuffer</code>: input buffer size of the connection in KiB,
+ * the output buffer is twice as large (default 8)</li>
+ * <li><code>pipeline</code>: send one pipelined APPEND per message, needs
+ * <code>literalplus</code> (default false)</li>
+ * </ul>
+ * <p>
+ * For TLS the server uses the self-signed key in
+ * <code>assets/benchmark.p12</code>. Its certificate is added to the app's
+ * local key store for the duration of the run.
+ * </p>
+ * <p>
+ * The contacts of the device are used to resolve the synthetic addresses, as
+ * during a real backup.
+ * </p>
+ */
+public class BackupBenchmark extends Instrumentation {
+    private static final String TAG = "BackupBenchmark";
+
+    private static final String USERNAME = "benchmark@example.com";
+
+    private static final String FOLDER = "SMS";
+
+    private static final String APPEND_COMMAND = "APPEND \"" + FOLDER + "\" (\\Seen)";
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final String SERVER_KEY_STORE = "benchmark.p12";
+
+    private static final String SERVER_KEY_ALIAS = "benchmark";
+
+    private static final char[] SERVER_KEY_PASSWORD = "benchmark".toCharArray();
+
+    private static final int DEFAULT_MESSAGES = 1000;
+
+    private static final int DEFAULT_BATCH = 10;
+
+    private Bundle mArguments;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mArguments = (arguments != null) ? arguments : new Bundle();
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        Bundle results = new Bundle();
+        try {
+            String report = runBenchmark();
+            Log.i(TAG, report);
+            results.putString(REPORT_KEY_STREAMRESULT, report + "\n");
+            finish(Activity.RESULT_OK, results);
+        } catch (Exception e) {
+            Log.e(TAG, "Benchmark failed.", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Benchmark failed: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+        }
+    }
+
+    private String runBenchmark() throws Exception {
+        int messages = getInt("messages", DEFAULT_MESSAGES);
+        int batch = getInt("batch", DEFAULT_BATCH);
+        boolean compress = getBoolean("compress", false);
+        boolean nio = getBoolean("nio", false);
+        boolean tls = nio || getBoolean("tls", false);
+        int socketBuffer = getInt("socketbuffer", 0);
+        int streamBuffer = getInt("streambuffer", 8);
+        boolean pipeline = getBoolean("pipeline", false);
+
+        // Used by the connections opened from now on
+        ImapStore.setUseNioTransport(nio);
+        ImapStore.setSocketBufferSize(socketBuffer * 1024);
+        ImapStore.setStreamBufferSizes(streamBuffer * 1024, 2 * streamBuffer * 1024);
+
+        KeyStore serverKeyStore = tls ? loadServerKeyStore() : null;
+        FakeImapServer server = new FakeImapServer();
+        server.setLatency(getInt("latency", 0));
+        server.setBandwidth(getInt("bandwidth", 0) * 1024);
+        server.setUidPlus(getBoolean("uidplus", true));
+        server.setLiteralPlus(getBoolean("literalplus", true));
+        server.setMultiAppend(getBoolean("multiappend", false));
+        server.setCompress(compress);
+        server.addMailbox(FOLDER);
+        if (tls) {
+            server.setSslContext(createServerSslContext(serverKeyStore));
+        }
+        int port = server.start();
+        if (tls) {
+            LocalKeyStore.setKeyStoreLocation(getTargetContext().getDir("KeyStore",
+                    Context.MODE_PRIVATE).toString());
+            LocalKeyStore.getInstance().addCertificate(HOST, port,
+                    (X509Certificate) serverKeyStore.getCertificate(SERVER_KEY_ALIAS));
+        }
+
+        // One batch warms up the code paths and the connection.
+        MatrixCursor cursor = SyntheticSms.createCursor(messages + batch);
+        long convertNanos = 0;
+        long serializeNanos = 0;
+        long appendNanos = 0;
+        long bytes = 0;
+        long[] latencies = new long[messages];
+        int uploaded = 0;
+        int folderMessages;
+        boolean warmup = true;
+        SpooledOutputStream buffer = new SpooledOutputStream(Integer.MAX_VALUE, null);
+        try {
+            Account account = new Account(getTargetContext(), (tls ? "imap+ssl+" : "imap")
+                    + "://PLAIN:" + URLEncoder.encode(USERNAME) + ":secret@" + HOST + ":" + port);
+            account.setCompression(Account.TYPE_MOBILE, compress);
+            account.setCompression(Account.TYPE_WIFI, compress);
+            account.setCompression(Account.TYPE_OTHER, compress);
+            ImapStore imapStore = new ImapStore(account);
+            ImapStore.ImapFolder folder = (ImapStore.ImapFolder) imapStore.getFolder(FOLDER);
+            folder.open(Folder.OPEN_MODE_RW);
+            ImapCommandPipeline commandPipeline = pipeline ? folder.openPipeline() : null;
+            CursorToMessage converter = new CursorToMessage(getTargetContext(), USERNAME);
+
+            while (true) {
+                long start = System.nanoTime();
+                ConversionResult result = converter.cursorToMessageArray(cursor, batch);
+                List<Message> list = result.messageList;
+                if (list.isEmpty()) {
+                    break;
+                }
+                long converted = System.nanoTime();
+                Message[] batchMessages = new Message[list.size()];
+                long batchBytes = 0;
+                for (int i = 0; i < batchMessages.length; i++) {
+                    batchMessages[i] = new SerializedMessage((MimeMessage) list.get(i), buffer);
+                    batchBytes += batchMessages[i].calculateSize();
+                }
+                long serialized = System.nanoTime();
+                if (commandPipeline != null) {
+                    appendPipelined(commandPipeline, batchMessages);
+                } else {
+                    folder.appendMessages(batchMessages);
+                }
+                long appended = System.nanoTime();
+                long[] ackTimes = server.drainAckTimes();
+
+                if (warmup) {
+                    warmup = false;
+                    server.resetStatistics();
+                    continue;
+                }
+                convertNanos += converted - start;
+                serializeNanos += serialized - converted;
+                appendNanos += appended - serialized;
+                bytes += batchBytes;
+                for (long ackTime : ackTimes) {
+                    if (uploaded < latencies.length) {
+                        latencies[uploaded++] = ackTime - serialized;
+                    }
+                }
+            }
+            if (commandPipeline != null) {
+                commandPipeline.close();
+            }
+            folderMessages = folder.getMessageCount();
+            folder.close();
+        } finally {
+            buffer.close();
+            cursor.close();
+            server.stop();
+            if (tls) {
+                LocalKeyStore.getInstance().deleteCertificate(HOST, port);
+            }
+        }
+
+        Arrays.sort(latencies, 0, uploaded);
+        long totalNanos = convertNanos + serializeNanos + appendNanos;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d messages, %d per request, latency %d ms, "
+                + "bandwidth %d KiB/s, compress %b%n",
+                uploaded, batch, getInt("latency", 0), getInt("bandwidth", 0), compress));
+        report.append(String.format(Locale.US, "tls %b, nio %b, socket buffer %d KiB, "
+                + "stream buffer %d KiB%n", tls, nio, socketBuffer, streamBuffer));
+        report.append(String.format(Locale.US, "pipeline %b, %d messages in the folder%n",
+                pipeline, folderMessages));
+        report.append(String.format(Locale.US,
+                "convert %d ms, serialize %d ms, append %d ms%n",
+                convertNanos / 1000000L, serializeNanos / 1000000L, appendNanos / 1000000L));
+        report.append(String.format(Locale.US, "%.1f messages/s, %.1f KiB/s (%d bytes, "
+                + "%d bytes on the wire)%n",
+                uploaded * 1e9 / totalNanos, bytes * 1e9 / totalNanos / 1024, bytes,
+                server.getBytesReceived()));
+        report.append(String.format(Locale.US, "APPEND latency p50 %.1f ms, p99 %.1f ms",
+                percentile(latencies, uploaded, 0.50) / 1e6,
+                percentile(latencies, uploaded, 0.99) / 1e6));
+        return report.toString();
+    }
+
+    /**
+     * Sends one APPEND command per message and waits for all of them to
+     * complete.
+     */
+    private static void appendPipelined(ImapCommandPipeline pipeline, Message[] messages)
+            throws Exception {
+        List<ImapCommandFuture> futures = new ArrayList<ImapCommandFuture>(messages.length);
+        ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        for (Message message : messages) {
+            literal.reset();
+            message.writeTo(literal);
+            futures.add(pipeline.submit(APPEND_COMMAND, literal.toByteArray()));
+        }
+        for (ImapCommandFuture future : futures) {
+            future.getResponses();
+        }
+    }
+
+    private KeyStore loadServerKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = getContext().getAssets().open(SERVER_KEY_STORE);
+        try {
+            keyStore.load(in, SERVER_KEY_PASSWORD);
+        } finally {
+            in.close();
+        }
+        return keyStore;
+    }
+
+    private static SSLContext createServerSslContext(KeyStore keyStore) throws Exception {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, SERVER_KEY_PASSWORD);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = mArguments.getString(key);
+        return (value != null) ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        String value = mArguments.getString(key);
+        return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+    }
+}
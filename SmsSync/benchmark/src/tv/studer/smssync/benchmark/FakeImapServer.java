@@ -0,0 +1,796 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLContext;
+
+import android.util.Log;
+
+/**
+ * In-process stand-in for an IMAP server, speaking just enough of RFC 3501 to
+ * run a backup: CAPABILITY, LOGIN, AUTHENTICATE PLAIN, NAMESPACE, LIST, LSUB,
+ * STATUS, SELECT, EXAMINE, CREATE, APPEND, UID SEARCH, NOOP and LOGOUT, plus
+ * the optional UIDPLUS, LITERAL+, MULTIAPPEND and COMPRESS=DEFLATE
+ * extensions. Appended messages are counted per mailbox and discarded. Like
+ * on a real server, an APPEND to the selected mailbox is followed by an
+ * untagged EXISTS response.
+ * <p>
+ * Every response is delayed by the configured round trip time and both
+ * directions are limited to the configured bandwidth. The delay is applied
+ * to the wire data as it is flushed, so pipelined commands overlap like they
+ * would on a real link.
+ * </p>
+ * <p>
+ * With an {@link SSLContext} the server expects implicit TLS like an IMAPS
+ * port. The byte counts and the bandwidth limit then apply to the decrypted
+ * data.
+ * </p>
+ * <p>
+ * Any user name and password are accepted.
+ * </p>
+ */
+public class FakeImapServer {
+    private static final String TAG = "FakeImapServer";
+
+    private static final String DELIMITER = "/";
+
+    private static final int UID_VALIDITY = 1;
+
+    private final Set<String> mMailboxes = Collections.synchronizedSet(new HashSet<String>());
+
+    private final Map<String, Integer> mMessageCounts = new HashMap<String, Integer>();
+
+    private final List<Session> mSessions = new ArrayList<Session>();
+
+    private final List<Long> mAckTimes = new ArrayList<Long>();
+
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private final AtomicLong mMessagesAppended = new AtomicLong();
+
+    private volatile boolean mUidPlus = true;
+
+    private volatile boolean mLiteralPlus = true;
+
+    private volatile boolean mMultiAppend = false;
+
+    private volatile boolean mCompress = false;
+
+    private volatile int mLatency;
+
+    private volatile int mBandwidth;
+
+    private SSLContext mSslContext;
+
+    private ServerSocket mServerSocket;
+
+    private Thread mAcceptThread;
+
+    private int mNextUid = 1;
+
+    public FakeImapServer() {
+        mMailboxes.add("INBOX");
+    }
+
+    public void setUidPlus(boolean uidPlus) {
+        mUidPlus = uidPlus;
+    }
+
+    public void setLiteralPlus(boolean literalPlus) {
+        mLiteralPlus = literalPlus;
+    }
+
+    public void setMultiAppend(boolean multiAppend) {
+        mMultiAppend = multiAppend;
+    }
+
+    public void setCompress(boolean compress) {
+        mCompress = compress;
+    }
+
+    /**
+     * Sets the round trip time in milliseconds added to every response.
+     */
+    public void setLatency(int millis) {
+        mLatency = millis;
+    }
+
+    /**
+     * Sets the bandwidth of each direction in bytes per second, 0 for
+     * unlimited.
+     */
+    public void setBandwidth(int bytesPerSecond) {
+        mBandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Sets the context providing the server key for implicit TLS, or
+     * <code>null</code> for plain connections. Must be called before
+     * {@link #start()}.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        mSslContext = sslContext;
+    }
+
+    public void addMailbox(String name) {
+        mMailboxes.add(name);
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface.
+     *
+     * @return the port.
+     */
+    public int start() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        mServerSocket = (mSslContext != null)
+                ? mSslContext.getServerSocketFactory().createServerSocket(0, 8, loopback)
+                : new ServerSocket(0, 8, loopback);
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, TAG);
+        mAcceptThread.start();
+        return mServerSocket.getLocalPort();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Closes the server socket and all open connections.
+     */
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close server socket.", e);
+        }
+        synchronized (mSessions) {
+            for (Session session : mSessions) {
+                session.close();
+            }
+            mSessions.clear();
+        }
+        try {
+            mAcceptThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while stopping the server.");
+        }
+    }
+
+    /** Returns the number of bytes received on the wire. */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /** Returns the number of bytes sent on the wire. */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long getMessagesAppended() {
+        return mMessagesAppended.get();
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the acknowledgement of
+     * each message appended since the last call reached the client, in the
+     * order the messages were appended.
+     */
+    public long[] drainAckTimes() {
+        synchronized (mAckTimes) {
+            long[] times = new long[mAckTimes.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = mAckTimes.get(i);
+            }
+            mAckTimes.clear();
+            return times;
+        }
+    }
+
+    public void resetStatistics() {
+        mBytesReceived.set(0);
+        mBytesSent.set(0);
+        mMessagesAppended.set(0);
+        drainAckTimes();
+    }
+
+    private void acceptConnections() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Server socket closed
+                return;
+            }
+            final Session session;
+            try {
+                session = new Session(socket);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to set up connection.", e);
+                continue;
+            }
+            synchronized (mSessions) {
+                mSessions.add(session);
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    session.run();
+                    synchronized (mSessions) {
+                        mSessions.remove(session);
+                    }
+                }
+            }, TAG + "-session").start();
+        }
+    }
+
+    private String getCapabilities() {
+        StringBuilder sb = new StringBuilder("IMAP4rev1 AUTH=PLAIN NAMESPACE");
+        if (mUidPlus) {
+            sb.append(" UIDPLUS");
+        }
+        if (mLiteralPlus) {
+            sb.append(" LITERAL+");
+        }
+        if (mMultiAppend) {
+            sb.append(" MULTIAPPEND");
+        }
+        if (mCompress) {
+            sb.append(" COMPRESS=DEFLATE");
+        }
+        return sb.toString();
+    }
+
+    private int getMessageCount(String mailbox) {
+        synchronized (mMessageCounts) {
+            Integer count = mMessageCounts.get(mailbox);
+            return (count != null) ? count : 0;
+        }
+    }
+
+    /**
+     * Adds appended messages to the count of a mailbox.
+     *
+     * @return the new number of messages in the mailbox.
+     */
+    private int addMessages(String mailbox, int count) {
+        synchronized (mMessageCounts) {
+            int total = getMessageCount(mailbox) + count;
+            mMessageCounts.put(mailbox, total);
+            return total;
+        }
+    }
+
+    private synchronized int allocateUids(int count) {
+        int first = mNextUid;
+        mNextUid += count;
+        return first;
+    }
+
+    /**
+     * Splits command arguments into atoms, unquoted strings, literal size
+     * specifications and parenthesized lists (kept with their parentheses).
+     */
+    static List<String> parseArguments(String line) {
+        List<String> args = new ArrayList<String>();
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == ' ') {
+                i++;
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (i < length && line.charAt(i) != '"') {
+                    if (line.charAt(i) == '\\' && i + 1 < length) {
+                        i++;
+                    }
+                    sb.append(line.charAt(i++));
+                }
+                args.add(sb.toString());
+                i++;
+            } else if (c == '(') {
+                int depth = 0;
+                int start = i;
+                do {
+                    if (line.charAt(i) == '(') {
+                        depth++;
+                    } else if (line.charAt(i) == ')') {
+                        depth--;
+                    }
+                    i++;
+                } while (i < length && depth > 0);
+                args.add(line.substring(start, i));
+            } else {
+                int end = line.indexOf(' ', i);
+                if (end < 0) {
+                    end = length;
+                }
+                args.add(line.substring(i, end));
+                i = end;
+            }
+        }
+        return args;
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * One client connection.
+     */
+    private class Session {
+        private final Socket mSocket;
+
+        private final DelayedOutputStream mWireOut;
+
+        private InputStream mIn;
+
+        private OutputStream mOut;
+
+        private boolean mAuthenticated;
+
+        private String mSelected;
+
+        Session(Socket socket) throws IOException {
+            mSocket = socket;
+            mSocket.setTcpNoDelay(true);
+            mIn = new BufferedInputStream(new ThrottledInputStream(socket.getInputStream()));
+            mWireOut = new DelayedOutputStream(socket.getOutputStream());
+            mOut = mWireOut;
+        }
+
+        void run() {
+            try {
+                writeLine("* OK FakeImapServer ready");
+                mOut.flush();
+                String line;
+                while ((line = readLine()) != null) {
+                    if (!handleCommand(line)) {
+                        break;
+                    }
+                    mOut.flush();
+                }
+                mOut.flush();
+            } catch (IOException e) {
+                if (!mSocket.isClosed()) {
+                    Log.w(TAG, "Connection failed.", e);
+                }
+            } finally {
+                mWireOut.finish();
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close connection.", e);
+            }
+        }
+
+        /**
+         * Handles a command line.
+         *
+         * @return <code>false</code> if the connection should be closed.
+         */
+        private boolean handleCommand(String line) throws IOException {
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                writeLine("* BAD Missing command");
+                return true;
+            }
+            String tag = line.substring(0, space);
+            List<String> args = parseArguments(line.substring(space + 1));
+            String command = args.remove(0).toUpperCase(Locale.US);
+            if ("UID".equals(command) && !args.isEmpty()) {
+                command = "UID " + args.remove(0).toUpperCase(Locale.US);
+            }
+
+            if ("CAPABILITY".equals(command)) {
+                writeLine("* CAPABILITY " + getCapabilities());
+                writeLine(tag + " OK CAPABILITY completed");
+            } else if ("NOOP".equals(command)) {
+                writeLine(tag + " OK NOOP completed");
+            } else if ("LOGOUT".equals(command)) {
+                writeLine("* BYE Logging out");
+                writeLine(tag + " OK LOGOUT completed");
+                return false;
+            } else if ("LOGIN".equals(command)) {
+                mAuthenticated = true;
+                writeLine(tag + " OK [CAPABILITY " + getCapabilities() + "] LOGIN completed");
+            } else if ("AUTHENTICATE".equals(command)) {
+                writeLine("+ ");
+                mOut.flush();
+                if (readLine() == null) {
+                    return false;
+                }
+                mAuthenticated = true;
+                writeLine(tag + " OK [CAPABILITY " + getCapabilities() + "] Authenticated");
+            } else if (!mAuthenticated) {
+                writeLine(tag + " NO Not authenticated");
+            } else if ("COMPRESS".equals(command) && mCompress) {
+                writeLine(tag + " OK DEFLATE active");
+                mOut.flush();
+                enableCompression();
+            } else if ("NAMESPACE".equals(command)) {
+                writeLine("* NAMESPACE ((\"\" \"" + DELIMITER + "\")) NIL NIL");
+                writeLine(tag + " OK NAMESPACE completed");
+            } else if ("LIST".equals(command) || "LSUB".equals(command)) {
+                list(tag, command, args);
+            } else if ("STATUS".equals(command)) {
+                String mailbox = args.get(0);
+                if (!mMailboxes.contains(mailbox)) {
+                    writeLine(tag + " NO Mailbox doesn't exist");
+                } else {
+                    writeLine("* STATUS " + quote(mailbox) + " (MESSAGES "
+                            + getMessageCount(mailbox) + " RECENT 0 UIDNEXT " + allocateUids(0)
+                            + " UIDVALIDITY " + UID_VALIDITY + " UNSEEN 0)");
+                    writeLine(tag + " OK STATUS completed");
+                }
+            } else if ("SELECT".equals(command) || "EXAMINE".equals(command)) {
+                if (!mMailboxes.contains(args.get(0))) {
+                    mSelected = null;
+                    writeLine(tag + " NO Mailbox doesn't exist");
+                } else {
+                    mSelected = args.get(0);
+                    writeLine("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)");
+                    writeLine("* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen "
+                            + "\\Draft \\*)] Flags permitted");
+                    writeLine("* " + getMessageCount(mSelected) + " EXISTS");
+                    writeLine("* 0 RECENT");
+                    writeLine("* OK [UIDVALIDITY " + UID_VALIDITY + "] UIDs valid");
+                    writeLine("* OK [UIDNEXT " + allocateUids(0) + "] Predicted next UID");
+                    writeLine(tag + " OK [" + ("SELECT".equals(command) ? "READ-WRITE"
+                            : "READ-ONLY") + "] " + command + " completed");
+                }
+            } else if ("CREATE".equals(command)) {
+                mMailboxes.add(args.get(0));
+                writeLine(tag + " OK CREATE completed");
+            } else if ("APPEND".equals(command)) {
+                append(tag, args);
+            } else if ("UID SEARCH".equals(command) || "SEARCH".equals(command)) {
+                writeLine("* SEARCH");
+                writeLine(tag + " OK SEARCH completed");
+            } else {
+                writeLine(tag + " BAD Command not supported: " + command);
+            }
+            return true;
+        }
+
+        private void list(String tag, String command, List<String> args) throws IOException {
+            String pattern = (args.size() > 1) ? args.get(1) : "";
+            if (pattern.length() == 0) {
+                writeLine("* " + command + " (\\Noselect) \"" + DELIMITER + "\" \"\"");
+            } else {
+                List<String> mailboxes;
+                synchronized (mMailboxes) {
+                    mailboxes = new ArrayList<String>(mMailboxes);
+                }
+                for (String mailbox : mailboxes) {
+                    writeLine("* " + command + " (\\HasNoChildren) \"" + DELIMITER + "\" "
+                            + quote(mailbox));
+                }
+            }
+            writeLine(tag + " OK " + command + " completed");
+        }
+
+        /**
+         * Reads the literals of an APPEND command, including the additional
+         * messages of a MULTIAPPEND command.
+         */
+        private void append(String tag, List<String> args) throws IOException {
+            String mailbox = args.get(0);
+            int count = 0;
+            while (true) {
+                String literalSpec = args.get(args.size() - 1);
+                if (!literalSpec.startsWith("{") || !literalSpec.endsWith("}")) {
+                    writeLine(tag + " BAD Missing literal");
+                    return;
+                }
+                boolean nonSynchronizing = literalSpec.endsWith("+}");
+                int size = Integer.parseInt(literalSpec.substring(1,
+                        literalSpec.length() - (nonSynchronizing ? 2 : 1)));
+                if (!nonSynchronizing) {
+                    writeLine("+ Ready for literal data");
+                    mOut.flush();
+                }
+                skipFully(size);
+                count++;
+
+                String rest = readLine();
+                if (rest == null) {
+                    throw new EOFException();
+                }
+                if (rest.trim().length() == 0) {
+                    break;
+                }
+                args = parseArguments(rest);
+            }
+
+            if (!mMailboxes.contains(mailbox)) {
+                writeLine(tag + " NO [TRYCREATE] Mailbox doesn't exist");
+                return;
+            }
+            mMessagesAppended.addAndGet(count);
+            int exists = addMessages(mailbox, count);
+            if (mailbox.equals(mSelected)) {
+                writeLine("* " + exists + " EXISTS");
+            }
+            mWireOut.addAcks(count);
+            int firstUid = allocateUids(count);
+            if (mUidPlus) {
+                String uids = (count == 1) ? String.valueOf(firstUid)
+                        : firstUid + ":" + (firstUid + count - 1);
+                writeLine(tag + " OK [APPENDUID " + UID_VALIDITY + " " + uids
+                        + "] APPEND completed");
+            } else {
+                writeLine(tag + " OK APPEND completed");
+            }
+        }
+
+        private void enableCompression() {
+            mIn = new BufferedInputStream(new InflaterInputStream(mIn, new Inflater(true), 1024) {
+                @Override
+                public int available() {
+                    // See ImapConnection.enableCompression()
+                    return 0;
+                }
+            });
+            mOut = new DeflaterOutputStream(mWireOut, new Deflater(Deflater.DEFAULT_COMPRESSION,
+                    true), 1024, true);
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = mIn.read()) != '\n') {
+                if (b == -1) {
+                    return null;
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString("ISO-8859-1");
+        }
+
+        private void skipFully(int size) throws IOException {
+            byte[] buffer = new byte[4096];
+            while (size > 0) {
+                int read = mIn.read(buffer, 0, Math.min(size, buffer.length));
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                size -= read;
+            }
+        }
+
+        private void writeLine(String line) throws IOException {
+            mOut.write((line + "\r\n").getBytes("ISO-8859-1"));
+        }
+    }
+
+    /**
+     * Spaces transfers out to the configured bandwidth.
+     */
+    private class RateLimiter {
+        private long mNextFree;
+
+        /**
+         * Blocks for the time the transfer of the given number of bytes
+         * takes.
+         */
+        void acquire(int bytes) {
+            int bandwidth = mBandwidth;
+            if (bandwidth <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            mNextFree = Math.max(mNextFree, now) + bytes * 1000000000L / bandwidth;
+            sleepUntil(mNextFree);
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        long millis = (nanoTime - System.nanoTime()) / 1000000L;
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Counts and rate limits the data received from the client.
+     */
+    private class ThrottledInputStream extends FilterInputStream {
+        private final RateLimiter mLimiter = new RateLimiter();
+
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                mBytesReceived.addAndGet(read);
+                mLimiter.acquire(read);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Output stream handing the data written before each flush to a sender
+     * thread, which delivers it after the round trip time at the configured
+     * bandwidth.
+     */
+    private class DelayedOutputStream extends OutputStream {
+        private final OutputStream mOut;
+
+        private final BlockingQueue<Chunk> mQueue = new LinkedBlockingQueue<Chunk>();
+
+        private final Thread mSender;
+
+        private final RateLimiter mLimiter = new RateLimiter();
+
+        private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+
+        private int mAcks;
+
+        DelayedOutputStream(OutputStream out) {
+            mOut = out;
+            mSender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, TAG + "-sender");
+            mSender.start();
+        }
+
+        /**
+         * Adds message acknowledgements to the data written so far. Their
+         * time is recorded once the data has been delivered.
+         */
+        void addAcks(int count) {
+            mAcks += count;
+        }
+
+        @Override
+        public void write(int b) {
+            mBuffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mBuffer.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            if (mBuffer.size() == 0 && mAcks == 0) {
+                return;
+            }
+            mQueue.add(new Chunk(mBuffer.toByteArray(), mAcks,
+                    System.nanoTime() + mLatency * 1000000L));
+            mBuffer = new ByteArrayOutputStream();
+            mAcks = 0;
+        }
+
+        /**
+         * Delivers all pending data and stops the sender thread.
+         */
+        void finish() {
+            flush();
+            mQueue.add(new Chunk(null, 0, 0));
+            try {
+                mSender.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while delivering pending responses.");
+            }
+        }
+
+        private void send() {
+            try {
+                while (true) {
+                    Chunk chunk = mQueue.take();
+                    if (chunk.data == null) {
+                        return;
+                    }
+                    sleepUntil(chunk.due);
+                    mLimiter.acquire(chunk.data.length);
+                    mOut.write(chunk.data);
+                    mOut.flush();
+                    mBytesSent.addAndGet(chunk.data.length);
+                    if (chunk.acks > 0) {
+                        long now = System.nanoTime();
+                        synchronized (mAckTimes) {
+                            for (int i = 0; i < chunk.acks; i++) {
+                                mAckTimes.add(now);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to send response.", e);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Sender interrupted.");
+            }
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+
+        final int acks;
+
+        final long due;
+
+        Chunk(byte[] data, int acks, long due) {
+            this.data = data;
+            this.acks = acks;
+            this.due = due;
+        }
+    }
+}
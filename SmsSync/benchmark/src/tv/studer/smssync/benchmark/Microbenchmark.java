@@ -0,0 +1,134 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync.benchmark;
+
+import java.util.Locale;
+
+import android.os.Debug;
+
+/**
+ * A piece of code measured by repeatedly calling {@link #run()}. If one
+ * call performs several operations, e.g. parses several responses, the
+ * results are reported per operation.
+ * <p>
+ * {@link #measure()} first runs the code for {@link #WARMUP_NANOS} so the
+ * JIT compiled it, then takes {@link #ROUNDS} timed rounds of about
+ * {@link #ROUND_NANOS} each and reports the mean time per operation with
+ * the spread between the rounds. Allocations are counted in a separate
+ * round with {@link Debug#startAllocCounting()}, since counting slows the
+ * allocations down.
+ * </p>
+ */
+abstract class Microbenchmark {
+    private static final long WARMUP_NANOS = 500 * 1000000L;
+
+    private static final long ROUND_NANOS = 200 * 1000000L;
+
+    private static final int ROUNDS = 5;
+
+    private final String mName;
+
+    private final int mOperationsPerRun;
+
+    /** Keeps results of the measured code alive. */
+    static volatile Object sSink;
+
+    Microbenchmark(String name) {
+        this(name, 1);
+    }
+
+    Microbenchmark(String name, int operationsPerRun) {
+        mName = name;
+        mOperationsPerRun = operationsPerRun;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Runs the measured operations once.
+     */
+    abstract void run() throws Exception;
+
+    Result measure() throws Exception {
+        // Warm up and find the number of operations per round.
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            run();
+            iterations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < WARMUP_NANOS);
+        long perRound = Math.max(1, iterations * ROUND_NANOS / elapsed);
+
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        double sum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            start = System.nanoTime();
+            for (long i = 0; i < perRound; i++) {
+                run();
+            }
+            double nanosPerOp = (double) (System.nanoTime() - start) / perRound
+                    / mOperationsPerRun;
+            min = Math.min(min, nanosPerOp);
+            max = Math.max(max, nanosPerOp);
+            sum += nanosPerOp;
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (long i = 0; i < perRound; i++) {
+                run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        Result result = new Result();
+        result.name = mName;
+        result.nanosPerOp = sum / ROUNDS;
+        result.spread = (max - min) / 2;
+        long operations = perRound * mOperationsPerRun;
+        result.bytesPerOp = (double) Debug.getThreadAllocSize() / operations;
+        result.allocationsPerOp = (double) Debug.getThreadAllocCount() / operations;
+        return result;
+    }
+
+    static class Result {
+        String name;
+
+        double nanosPerOp;
+
+        /** Half the difference between the slowest and the fastest round. */
+        double spread;
+
+        double bytesPerOp;
+
+        double allocationsPerOp;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%-45s %11.1f ns/op (+/- %.1f) %10.1f B/op %7.1f allocs/op", name,
+                    nanosPerOp, spread, bytesPerOp, allocationsPerOp);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.res.AssetManager;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.store.ImapResponseParser;
+
+/**
+ * Replays server transcripts through {@link ImapResponseParser} and reports
+ * the time and allocations per response and the parser throughput.
+ * <p>
+ * The recorded transcripts in <code>assets/transcripts</code> cover a
+ * backup session with APPEND continuations and <code>[APPENDUID ...]</code>
+ * responses and a session with SEARCH, FETCH BODYSTRUCTURE and message
+ * literals. {@link TranscriptGenerator} adds large synthetic ones: a
+ * 100k-UID SEARCH, 10k FETCH BODYSTRUCTURE lines, 60 KiB literals (just
+ * below the size at which literals are spooled to a file) and APPEND
+ * continuations.
+ * </p>
+ * <p>
+ * Run it with
+ * </p>
+ *
+ * <pre>
+ * adb shell am instrument -w [-e filter search] \
+ *     tv.studer.smssync.benchmark/.ParserBenchmark
+ * </pre>
+ */
+public class ParserBenchmark extends Instrumentation {
+    private static final String TAG = "ParserBenchmark";
+
+    private static final String TRANSCRIPT_DIR = "transcripts";
+
+    private Bundle mArguments;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mArguments = (arguments != null) ? arguments : new Bundle();
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        Bundle results = new Bundle();
+        try {
+            AssetManager assets = getContext().getAssets();
+            for (String name : assets.list(TRANSCRIPT_DIR)) {
+                InputStream in = assets.open(TRANSCRIPT_DIR + "/" + name);
+                try {
+                    replay(name, readFully(in));
+                } finally {
+                    in.close();
+                }
+            }
+            replay("generated search-100k", TranscriptGenerator.search(100000));
+            replay("generated fetch-10k", TranscriptGenerator.fetch(10000));
+            replay("generated literals-60k", TranscriptGenerator.literals(100, 60 * 1024));
+            replay("generated appends-1k", TranscriptGenerator.appends(1000));
+            finish(Activity.RESULT_OK, results);
+        } catch (Exception e) {
+            Log.e(TAG, "Benchmark failed.", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Benchmark failed: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+        }
+    }
+
+    private void replay(String name, final byte[] transcript) throws Exception {
+        String filter = mArguments.getString("filter");
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        final int responses = countResponses(transcript);
+        Microbenchmark benchmark = new Microbenchmark(name, responses) {
+            @Override
+            void run() throws IOException {
+                parse(transcript, responses);
+            }
+        };
+        Microbenchmark.Result result = benchmark.measure();
+        double bytesPerSecond = transcript.length * 1e9 / (result.nanosPerOp * responses);
+        String line = String.format(Locale.US, "%s %8.2f MiB/s (%d responses, %d bytes)",
+                result, bytesPerSecond / (1024 * 1024), responses, transcript.length);
+        Log.i(TAG, line);
+        Bundle status = new Bundle();
+        status.putString(REPORT_KEY_STREAMRESULT, line + "\n");
+        sendStatus(0, status);
+    }
+
+    /**
+     * Parses the given number of responses of the transcript.
+     */
+    private static void parse(byte[] transcript, int responses) throws IOException {
+        ImapResponseParser parser = new ImapResponseParser(
+                new PeekableInputStream(new ByteArrayInputStream(transcript)));
+        for (int i = 0; i < responses; i++) {
+            Microbenchmark.sSink = parser.readResponse();
+        }
+    }
+
+    /**
+     * Returns the number of responses in the transcript. The parser reads
+     * ahead, so the end of the transcript is only noticed when reading the
+     * response after the last one fails.
+     */
+    private static int countResponses(byte[] transcript) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(transcript);
+        ImapResponseParser parser = new ImapResponseParser(new PeekableInputStream(in));
+        int responses = 0;
+        while (true) {
+            try {
+                parser.readResponse();
+            } catch (IOException e) {
+                if (in.available() == 0) {
+                    return responses;
+                }
+                throw e;
+            }
+            responses++;
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,217 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.mime4j.util.MimeUtil;
+
+import tv.studer.smssync.CursorToMessage;
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.filter.Base64;
+import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.internet.EncoderUtil;
+import com.fsck.k9.mail.internet.MimeHeader;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+
+/**
+ * Microbenchmarks of the MIME serialization done for every backed up SMS.
+ * <p>
+ * The messages are created by {@link CursorToMessage} from a short ASCII, a
+ * long UTF-8 and an emoji SMS, so they have the headers and body of a real
+ * backup. Each benchmark reports the time per operation and the bytes and
+ * objects allocated per operation (see {@link Microbenchmark}).
+ * </p>
+ * <p>
+ * Run it with
+ * </p>
+ *
+ * <pre>
+ * adb shell am instrument -w [-e filter writeTo] \
+ *     tv.studer.smssync.benchmark/.SerializationBenchmark
+ * </pre>
+ * <p>
+ * <code>filter</code> only runs the benchmarks whose name contains the given
+ * string.
+ * </p>
+ */
+public class SerializationBenchmark extends Instrumentation {
+    private static final String TAG = "SerializationBenchmark";
+
+    private static final String USERNAME = "benchmark@example.com";
+
+    private static final String[] SHAPES = new String[] {
+            "short", "long", "emoji"
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int oneByte) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+        }
+    };
+
+    private Bundle mArguments;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mArguments = (arguments != null) ? arguments : new Bundle();
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        Bundle results = new Bundle();
+        try {
+            String filter = mArguments.getString("filter");
+            for (Microbenchmark benchmark : createBenchmarks()) {
+                if (filter != null && !benchmark.getName().contains(filter)) {
+                    continue;
+                }
+                String result = benchmark.measure().toString();
+                Log.i(TAG, result);
+                Bundle status = new Bundle();
+                status.putString(REPORT_KEY_STREAMRESULT, result + "\n");
+                sendStatus(0, status);
+            }
+            finish(Activity.RESULT_OK, results);
+        } catch (Exception e) {
+            Log.e(TAG, "Benchmark failed.", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Benchmark failed: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+        }
+    }
+
+    private List<Microbenchmark> createBenchmarks() throws Exception {
+        MatrixCursor cursor = SyntheticSms.createCursor(SyntheticSms.SHORT_ASCII,
+                SyntheticSms.LONG_UTF8, SyntheticSms.EMOJI);
+        List<Message> messages;
+        try {
+            messages = new CursorToMessage(getTargetContext(), USERNAME)
+                    .cursorToMessageArray(cursor, SHAPES.length).messageList;
+        } finally {
+            cursor.close();
+        }
+        String[] texts = new String[] {
+                SyntheticSms.SHORT_ASCII, SyntheticSms.LONG_UTF8, SyntheticSms.EMOJI
+        };
+
+        List<Microbenchmark> benchmarks = new ArrayList<Microbenchmark>();
+        for (int i = 0; i < SHAPES.length; i++) {
+            addBenchmarks(benchmarks, SHAPES[i], (MimeMessage) messages.get(i), texts[i]);
+        }
+        return benchmarks;
+    }
+
+    private static void addBenchmarks(List<Microbenchmark> benchmarks, String shape,
+            final MimeMessage message, final String text) throws Exception {
+        final MimeHeader header = new MimeHeader();
+        header.setCharset("UTF-8");
+        for (String name : message.getHeaderNames()) {
+            for (String value : message.getHeader(name)) {
+                header.addHeader(name, value);
+            }
+        }
+        final TextBody quotedPrintable = new TextBody(text);
+        quotedPrintable.setEncoding(MimeUtil.ENC_QUOTED_PRINTABLE);
+        final TextBody eightBit = new TextBody(text);
+        eightBit.setEncoding(MimeUtil.ENC_8BIT);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        final byte[] serialized = out.toByteArray();
+        // What EOLConvertingOutputStream sees when given bare line feeds
+        final byte[] unixLines = new String(serialized, "ISO-8859-1").replace("\r\n", "\n")
+                .getBytes("ISO-8859-1");
+
+        benchmarks.add(new Microbenchmark("MimeMessage.writeTo/" + shape) {
+            @Override
+            void run() throws Exception {
+                message.writeTo(NULL_OUTPUT);
+            }
+        });
+        benchmarks.add(new Microbenchmark("MimeHeader.writeTo/" + shape) {
+            @Override
+            void run() throws Exception {
+                header.writeTo(NULL_OUTPUT);
+            }
+        });
+        benchmarks.add(new Microbenchmark("Message.calculateSize/" + shape) {
+            @Override
+            void run() {
+                sSink = message.calculateSize();
+            }
+        });
+        benchmarks.add(new Microbenchmark("TextBody.writeTo quoted-printable/" + shape) {
+            @Override
+            void run() throws Exception {
+                quotedPrintable.writeTo(NULL_OUTPUT);
+            }
+        });
+        benchmarks.add(new Microbenchmark("TextBody.writeTo 8bit/" + shape) {
+            @Override
+            void run() throws Exception {
+                eightBit.writeTo(NULL_OUTPUT);
+            }
+        });
+        benchmarks.add(new Microbenchmark("EncoderUtil.encodeEncodedWord/" + shape) {
+            @Override
+            void run() {
+                sSink = EncoderUtil.encodeEncodedWord(text, UTF_8);
+            }
+        });
+        benchmarks.add(new Microbenchmark("EOLConvertingOutputStream/" + shape) {
+            @Override
+            void run() throws Exception {
+                EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(NULL_OUTPUT);
+                eolOut.write(unixLines);
+                eolOut.flush();
+            }
+        });
+        benchmarks.add(new Microbenchmark("Base64.encodeBase64/" + shape) {
+            @Override
+            void run() {
+                sSink = Base64.encodeBase64(serialized);
+            }
+        });
+        benchmarks.add(new Microbenchmark("Base64OutputStream/" + shape) {
+            @Override
+            void run() throws Exception {
+                Base64OutputStream base64Out = new Base64OutputStream(NULL_OUTPUT);
+                base64Out.write(serialized);
+                base64Out.close();
+            }
+        });
+    }
+}
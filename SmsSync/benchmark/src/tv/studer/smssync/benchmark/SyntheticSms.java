@@ -0,0 +1,92 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync.benchmark;
+
+import java.util.Random;
+
+import tv.studer.smssync.SmsConsts;
+import android.database.MatrixCursor;
+
+/**
+ * Reproducible SMS test data with the columns of <code>content://sms</code>.
+ */
+class SyntheticSms {
+    /** A short ASCII message. */
+    static final String SHORT_ASCII = "On my way, see you in 10 minutes";
+
+    /** A long UTF-8 message, sent as a concatenated SMS. */
+    static final String LONG_UTF8 = "Kannst du bitte noch Milch mitbringen? Danke! Wir sehen "
+            + "uns sp\u00E4ter beim Abendessen, ich koche heute R\u00F6sti mit Gem\u00FCse. "
+            + "Falls du fr\u00FCher da bist, der Schl\u00FCssel liegt wie immer unter dem "
+            + "Blumentopf neben der T\u00FCr. Bis nachher und gr\u00FCss mir die Kollegen.";
+
+    /** A message consisting mostly of emoji outside the BMP. */
+    static final String EMOJI = "\uD83D\uDE02\uD83D\uDE02\uD83D\uDE02 \uD83C\uDF89\uD83C\uDF82 "
+            + "happy birthday!!! \u2764\uFE0F\u2764\uFE0F\uD83D\uDE18";
+
+    private static final String[] BODIES = new String[] {
+            SHORT_ASCII, LONG_UTF8, EMOJI,
+            "Your verification code is 482913. Do not share it with anyone."
+    };
+
+    private static final String[] COLUMNS = new String[] {
+            SmsConsts.ID, SmsConsts.ADDRESS, SmsConsts.BODY, SmsConsts.DATE,
+            SmsConsts.THREAD_ID, SmsConsts.TYPE, SmsConsts.READ, SmsConsts.STATUS,
+            SmsConsts.PROTOCOL, SmsConsts.SERVICE_CENTER
+    };
+
+    private static final long FIRST_DATE = 1262304000000L;
+
+    private SyntheticSms() {
+    }
+
+    /**
+     * Creates a cursor holding a reproducible mix of short, long and emoji
+     * messages from a few dozen correspondents.
+     */
+    static MatrixCursor createCursor(int count) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, count);
+        Random random = new Random(42);
+        long date = FIRST_DATE;
+        for (int i = 0; i < count; i++) {
+            int correspondent = random.nextInt(40);
+            date += random.nextInt(3600000);
+            addRow(cursor, i + 1, correspondent, BODIES[random.nextInt(BODIES.length)], date,
+                    random.nextBoolean());
+        }
+        return cursor;
+    }
+
+    /**
+     * Creates a cursor with one received message per body.
+     */
+    static MatrixCursor createCursor(String... bodies) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, bodies.length);
+        for (int i = 0; i < bodies.length; i++) {
+            addRow(cursor, i + 1, i, bodies[i], FIRST_DATE + i * 60000L, true);
+        }
+        return cursor;
+    }
+
+    private static void addRow(MatrixCursor cursor, long id, int correspondent, String body,
+            long date, boolean inbox) {
+        cursor.addRow(new Object[] {
+                id, "+4179555" + (1000 + correspondent * 37), body, date, (long) correspondent,
+                inbox ? SmsConsts.MESSAGE_TYPE_INBOX : SmsConsts.MESSAGE_TYPE_SENT, 1, -1, 0,
+                null
+        });
+    }
+}
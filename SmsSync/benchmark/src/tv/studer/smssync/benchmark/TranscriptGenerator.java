@@ -0,0 +1,198 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync.benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates large synthetic server transcripts, i.e. the data an IMAP
+ * client reads, for benchmarking the response parser.
+ * <p>
+ * The generator only depends on the JDK, so the transcripts can also be
+ * written to files on a desktop:
+ * </p>
+ *
+ * <pre>
+ * java tv.studer.smssync.benchmark.TranscriptGenerator search 100000 search-100k.txt
+ * </pre>
+ * <p>
+ * The output of a kind and count is always the same.
+ * </p>
+ */
+public class TranscriptGenerator {
+    private static final String CRLF = "\r\n";
+
+    private final StringBuilder mOut = new StringBuilder();
+
+    private final Random mRandom = new Random(42);
+
+    private int mTag = 1;
+
+    /**
+     * Returns a SEARCH response with the given number of UIDs.
+     */
+    public static byte[] search(int uids) {
+        TranscriptGenerator generator = new TranscriptGenerator();
+        generator.appendSearch(uids);
+        return generator.toByteArray();
+    }
+
+    /**
+     * Returns the responses to a UID FETCH of UID, size, flags, internal
+     * date and BODYSTRUCTURE for the given number of messages.
+     */
+    public static byte[] fetch(int lines) {
+        TranscriptGenerator generator = new TranscriptGenerator();
+        generator.appendFetch(lines);
+        return generator.toByteArray();
+    }
+
+    /**
+     * Returns the responses to a FETCH BODY[] of the given number of
+     * messages with the given size in bytes.
+     */
+    public static byte[] literals(int count, int size) {
+        TranscriptGenerator generator = new TranscriptGenerator();
+        generator.appendLiterals(count, size);
+        return generator.toByteArray();
+    }
+
+    /**
+     * Returns the responses to the given number of APPEND commands with
+     * synchronizing literals: a command continuation request and a tagged
+     * response with an APPENDUID response code each.
+     */
+    public static byte[] appends(int count) {
+        TranscriptGenerator generator = new TranscriptGenerator();
+        generator.appendAppends(count);
+        return generator.toByteArray();
+    }
+
+    private void appendSearch(int uids) {
+        mOut.append("* SEARCH");
+        long uid = 100000;
+        for (int i = 0; i < uids; i++) {
+            uid += 1 + mRandom.nextInt(3);
+            mOut.append(' ').append(uid);
+        }
+        mOut.append(CRLF);
+        appendTagged("OK SEARCH completed");
+    }
+
+    private void appendFetch(int lines) {
+        long uid = 100000;
+        for (int i = 1; i <= lines; i++) {
+            uid += 1 + mRandom.nextInt(3);
+            int size = 600 + mRandom.nextInt(2000);
+            mOut.append(String.format(Locale.US,
+                    "* %d FETCH (UID %d RFC822.SIZE %d FLAGS (\\Seen%s) "
+                    + "INTERNALDATE \"%02d-Oct-2026 %02d:%02d:%02d +0200\" BODYSTRUCTURE ",
+                    i, uid, size, (i % 7 == 0) ? " \\Answered" : "", 1 + i % 28, i % 24,
+                    i % 60, (i * 7) % 60));
+            if (i % 3 == 0) {
+                mOut.append(String.format(Locale.US, "(\"text\" \"plain\" (\"charset\" \"utf-8\") "
+                        + "NIL NIL \"8bit\" %d %d NIL NIL NIL NIL))", size, size / 60));
+            } else {
+                mOut.append(String.format(Locale.US, "((\"text\" \"plain\" (\"charset\" \"utf-8\") "
+                        + "NIL NIL \"quoted-printable\" %d %d NIL NIL NIL NIL)(\"text\" \"html\" "
+                        + "(\"charset\" \"utf-8\") NIL NIL \"quoted-printable\" %d %d NIL NIL NIL "
+                        + "NIL) \"alternative\" (\"boundary\" \"----=_Part_%d\") NIL NIL NIL))",
+                        size / 3, size / 180, size / 2, size / 120, mRandom.nextInt(1000000)));
+            }
+            mOut.append(CRLF);
+        }
+        appendTagged("OK Fetch completed");
+    }
+
+    private void appendLiterals(int count, int size) {
+        StringBuilder message = new StringBuilder(size);
+        message.append("Subject: SMS with Anna Muster\r\nX-smssync-type: 1\r\n"
+                + "Content-Type: text/plain;\r\n charset=utf-8\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n\r\n");
+        while (message.length() < size - 2) {
+            int lineLength = Math.min(74, size - 2 - message.length());
+            for (int i = 0; i < lineLength; i++) {
+                message.append((char) ('a' + mRandom.nextInt(26)));
+            }
+            message.append(CRLF);
+        }
+        message.setLength(size);
+
+        for (int i = 1; i <= count; i++) {
+            mOut.append("* ").append(i).append(" FETCH (UID ").append(100000 + i)
+                    .append(" BODY[] {").append(size).append('}').append(CRLF);
+            mOut.append(message).append(')').append(CRLF);
+        }
+        appendTagged("OK Fetch completed");
+    }
+
+    private void appendAppends(int count) {
+        for (int i = 0; i < count; i++) {
+            mOut.append("+ Ready for literal data").append(CRLF);
+            appendTagged("OK [APPENDUID 612 " + (24911 + i) + "] APPEND completed");
+        }
+    }
+
+    private void appendTagged(String text) {
+        mOut.append(mTag++).append(' ').append(text).append(CRLF);
+    }
+
+    private byte[] toByteArray() {
+        try {
+            return mOut.toString().getBytes("US-ASCII");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: TranscriptGenerator "
+                    + "search|fetch|appends <count> <file> | literals <count> <size> <file>");
+            System.exit(1);
+        }
+        byte[] transcript;
+        String file;
+        int count = Integer.parseInt(args[1]);
+        if ("literals".equals(args[0]) && args.length > 3) {
+            transcript = literals(count, Integer.parseInt(args[2]));
+            file = args[3];
+        } else if ("search".equals(args[0])) {
+            transcript = search(count);
+            file = args[2];
+        } else if ("fetch".equals(args[0])) {
+            transcript = fetch(count);
+            file = args[2];
+        } else if ("appends".equals(args[0])) {
+            transcript = appends(count);
+            file = args[2];
+        } else {
+            System.err.println("Unknown transcript kind: " + args[0]);
+            System.exit(1);
+            return;
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(transcript);
+        } finally {
+            out.close();
+        }
+    }
+}
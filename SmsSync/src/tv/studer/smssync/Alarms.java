@@ -57,7 +57,10 @@ public class Alarms {
     private static PendingIntent createPendingIntent(Context ctx) {
         Intent serviceIntent = new Intent(ctx, SmsSyncService.class);
         serviceIntent.putExtra(Consts.KEY_NUM_RETRIES, Consts.NUM_AUTO_RETRIES);
-        return PendingIntent.getService(ctx, 0, serviceIntent, 0);
+        serviceIntent.putExtra(Consts.KEY_SCHEDULED, true);
+        // Replace the extras of an alarm scheduled by an older version
+        return PendingIntent.getService(ctx, 0, serviceIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
     }
     
 }
@@ -0,0 +1,188 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Append-only journal of the (date, _id) position of the last SMS that was
+ * acknowledged by the server.
+ * <p>
+ * Each checkpoint is a fixed size record of two longs appended to the end of
+ * the file, so a checkpoint costs a single small write instead of rewriting
+ * the preferences file. The last complete record wins; a partially written
+ * record at the end of the file (e.g. after a crash) is ignored. Once the
+ * journal holds {@link #MAX_RECORDS} records it is compacted to its last
+ * record by writing a new file and renaming it over the old one.
+ * </p>
+ * <p>
+ * Together with an ordering by <code>date, _id</code> the position identifies
+ * the last uploaded message exactly, also if several messages share the same
+ * date.
+ * </p>
+ */
+class CheckpointJournal {
+    private static final String FILE_NAME = "checkpoint.journal";
+
+    private static final int RECORD_SIZE = 16;
+
+    /** Number of records after which the journal is compacted. */
+    private static final int MAX_RECORDS = 1024;
+
+    /**
+     * ID used for checkpoints that only know the date. All messages with that
+     * date are considered to be synced.
+     */
+    static final long NO_ID = Long.MAX_VALUE;
+
+    private final File mFile;
+
+    private RandomAccessFile mRaf;
+
+    private long mRecords;
+
+    private long mDate = PrefStore.DEFAULT_MAX_SYNCED_DATE;
+
+    private long mId = NO_ID;
+
+    private boolean mEmpty = true;
+
+    private CheckpointJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Opens the journal and reads the last checkpoint.
+     */
+    static CheckpointJournal open(Context ctx) throws IOException {
+        CheckpointJournal journal = new CheckpointJournal(getFile(ctx));
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * Deletes the journal, e.g. when the sync data is reset.
+     */
+    static void delete(Context ctx) {
+        getFile(ctx).delete();
+    }
+
+    private static File getFile(Context ctx) {
+        return new File(ctx.getFilesDir(), FILE_NAME);
+    }
+
+    private void load() throws IOException {
+        mRaf = new RandomAccessFile(mFile, "rw");
+        long length = mRaf.length();
+        mRecords = length / RECORD_SIZE;
+        if (length % RECORD_SIZE != 0) {
+            Log.w(Consts.TAG, "Ignoring incomplete checkpoint record.");
+            mRaf.setLength(mRecords * RECORD_SIZE);
+        }
+        if (mRecords > 0) {
+            mRaf.seek((mRecords - 1) * RECORD_SIZE);
+            mDate = mRaf.readLong();
+            mId = mRaf.readLong();
+            mEmpty = false;
+        }
+        mRaf.seek(mRecords * RECORD_SIZE);
+    }
+
+    /**
+     * Returns whether no checkpoint has been written yet.
+     */
+    boolean isEmpty() {
+        return mEmpty;
+    }
+
+    /** Returns the date of the last checkpoint. */
+    long getDate() {
+        return mDate;
+    }
+
+    /** Returns the _id of the last checkpoint. */
+    long getId() {
+        return mId;
+    }
+
+    /**
+     * Records that all messages up to and including the given position have
+     * been acknowledged by the server.
+     */
+    void append(long date, long id) throws IOException {
+        if (mRecords >= MAX_RECORDS) {
+            compact(date, id);
+        } else {
+            byte[] record = new byte[RECORD_SIZE];
+            putLong(record, 0, date);
+            putLong(record, 8, id);
+            mRaf.write(record);
+            mRaf.getFD().sync();
+            mRecords++;
+        }
+        mDate = date;
+        mId = id;
+        mEmpty = false;
+    }
+
+    void close() {
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "Unable to close checkpoint journal.", e);
+        }
+    }
+
+    /**
+     * Replaces the journal by a new one containing only the given checkpoint.
+     */
+    private void compact(long date, long id) throws IOException {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(date);
+            out.writeLong(id);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        mRaf.close();
+        if (!tmpFile.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mRecords = 1;
+        mRaf.seek(RECORD_SIZE);
+        Log.d(Consts.TAG, "Checkpoint journal compacted.");
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
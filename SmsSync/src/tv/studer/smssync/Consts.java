@@ -37,6 +37,12 @@ final class Consts {
      * during sync.
      */
     static final String KEY_NUM_RETRIES = "num_retries";
+
+    /**
+     * Key in the intent extras indicating that the sync was started by an alarm
+     * rather than by the user.
+     */
+    static final String KEY_SCHEDULED = "scheduled";
     
     /** Website containing more information about this application. */
     static final String URL_INFO_LINK = "http://code.google.com/p/android-sms/wiki/UserGuide";
@@ -0,0 +1,298 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.Contacts;
+import android.provider.Contacts.People;
+import android.util.Log;
+
+import com.fsck.k9.mail.store.LockableDatabase;
+import com.fsck.k9.mail.store.LockableDatabase.DbCallback;
+import com.fsck.k9.mail.store.LockableDatabase.SchemaDefinition;
+import com.fsck.k9.mail.store.StorageManager;
+import com.fsck.k9.mail.store.UnavailableStorageException;
+
+/**
+ * Persistent address to contact cache, so backups started for a single new
+ * SMS don't need to query the contacts provider.
+ * <p>
+ * While the process is running, a content observer drops the cache on any
+ * change of the contacts. Changes made while the process wasn't running are
+ * only detected if they change the number of people or the highest person
+ * ID, which is checked with a single query sorted by ID. Any other change,
+ * e.g. an edited phone number, can therefore be missed for up to
+ * {@link #MAX_AGE}, after which all entries are dropped.
+ * </p>
+ */
+class ContactCache {
+    private static final String DB_NAME = "contact_cache";
+
+    private static final int DB_VERSION = 1;
+
+    /** Maximum age of the cache content in milliseconds. */
+    static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final String META_FINGERPRINT = "fingerprint";
+
+    private static final String META_CREATED = "created";
+
+    private static final String[] PEOPLE_FINGERPRINT_PROJECTION = new String[] {
+            People._ID
+    };
+
+    /**
+     * Authority of the contacts provider since Android 2.0. Changes made
+     * through its API aren't necessarily notified for {@link Contacts#CONTENT_URI}.
+     */
+    private static final Uri CONTACTS_CONTRACT_URI = Uri.parse("content://com.android.contacts");
+
+    private static final String[] CONTACT_PROJECTION = new String[] {
+            "person_id", "name", "email"
+    };
+
+    private static ContactCache sInstance;
+
+    private final Application mApplication;
+
+    private final LockableDatabase mDatabase;
+
+    private final List<ContentValues> mPendingWrites = new ArrayList<ContentValues>();
+
+    /** Set by {@link #mContactsObserver} when the contacts changed. */
+    private volatile boolean mContactsChanged;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mContactsChanged = true;
+        }
+    };
+
+    /**
+     * A cached contact. {@link #personId} is <code>null</code> for addresses
+     * without a contact.
+     */
+    static class Entry {
+        String personId;
+
+        String name;
+
+        String email;
+    }
+
+    private ContactCache(Application application) {
+        mApplication = application;
+        mDatabase = new LockableDatabase(application, DB_NAME, new SchemaDefinition() {
+            @Override
+            public int getVersion() {
+                return DB_VERSION;
+            }
+
+            @Override
+            public void doDbUpgrade(SQLiteDatabase db) {
+                db.execSQL("DROP TABLE IF EXISTS contacts");
+                db.execSQL("CREATE TABLE contacts (address TEXT PRIMARY KEY, "
+                        + "person_id TEXT, name TEXT, email TEXT)");
+                db.execSQL("DROP TABLE IF EXISTS meta");
+                db.execSQL("CREATE TABLE meta (key TEXT PRIMARY KEY, value TEXT)");
+                db.setVersion(DB_VERSION);
+            }
+        });
+        mDatabase.setStorageProviderId(StorageManager.InternalStorageProvider.ID);
+    }
+
+    /**
+     * Returns the contact cache, opening it if necessary and dropping its
+     * content if the contacts changed since it was filled. Returns
+     * <code>null</code> if the cache is not available.
+     */
+    static synchronized ContactCache open(Application application) {
+        try {
+            if (sInstance == null) {
+                ContactCache cache = new ContactCache(application);
+                cache.mDatabase.open();
+                ContentResolver resolver = application.getContentResolver();
+                resolver.registerContentObserver(Contacts.CONTENT_URI, true,
+                        cache.mContactsObserver);
+                resolver.registerContentObserver(CONTACTS_CONTRACT_URI, true,
+                        cache.mContactsObserver);
+                sInstance = cache;
+            }
+            sInstance.validate();
+            return sInstance;
+        } catch (UnavailableStorageException e) {
+            Log.w(Consts.TAG, "Contact cache not available.", e);
+        } catch (RuntimeException e) {
+            // E.g. SQLiteException
+            Log.w(Consts.TAG, "Contact cache not available.", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached contact for the given address or <code>null</code>
+     * if the address is not cached.
+     */
+    Entry get(final String address) {
+        try {
+            return mDatabase.execute(false, new DbCallback<Entry>() {
+                @Override
+                public Entry doDbWork(SQLiteDatabase db) {
+                    Cursor cursor = db.query("contacts", CONTACT_PROJECTION, "address = ?",
+                            new String[] { address }, null, null, null);
+                    try {
+                        if (!cursor.moveToFirst()) {
+                            return null;
+                        }
+                        Entry entry = new Entry();
+                        entry.personId = cursor.getString(0);
+                        entry.name = cursor.getString(1);
+                        entry.email = cursor.getString(2);
+                        return entry;
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+        } catch (UnavailableStorageException e) {
+            Log.w(Consts.TAG, "Contact cache not available.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds a contact to the cache. Use a <code>null</code> person ID for
+     * addresses without a contact. The entry is written by {@link #flush()}.
+     */
+    void put(String address, String personId, String name, String email) {
+        ContentValues values = new ContentValues(4);
+        values.put("address", address);
+        values.put("person_id", personId);
+        values.put("name", name);
+        values.put("email", email);
+        mPendingWrites.add(values);
+    }
+
+    /**
+     * Writes all entries added with {@link #put(String, String, String, String)}.
+     */
+    void flush() {
+        if (mPendingWrites.isEmpty()) {
+            return;
+        }
+        try {
+            mDatabase.execute(true, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(SQLiteDatabase db) {
+                    for (ContentValues values : mPendingWrites) {
+                        db.replace("contacts", null, values);
+                    }
+                    return null;
+                }
+            });
+        } catch (UnavailableStorageException e) {
+            Log.w(Consts.TAG, "Unable to write contact cache.", e);
+        }
+        mPendingWrites.clear();
+    }
+
+    private void validate() throws UnavailableStorageException {
+        // Reset before the check, so changes during it are seen next time
+        final boolean changed = mContactsChanged;
+        mContactsChanged = false;
+        final String fingerprint = getPeopleFingerprint();
+        final long now = System.currentTimeMillis();
+        boolean valid = !changed && mDatabase.execute(false, new DbCallback<Boolean>() {
+            @Override
+            public Boolean doDbWork(SQLiteDatabase db) {
+                String storedFingerprint = getMeta(db, META_FINGERPRINT);
+                String created = getMeta(db, META_CREATED);
+                return fingerprint != null && fingerprint.equals(storedFingerprint)
+                        && created != null && now - Long.parseLong(created) < MAX_AGE;
+            }
+        });
+        if (valid) {
+            return;
+        }
+
+        Log.d(Consts.TAG, "Contacts changed, dropping contact cache.");
+        mDatabase.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) {
+                db.delete("contacts", null, null);
+                db.delete("meta", null, null);
+                if (fingerprint != null) {
+                    putMeta(db, META_FINGERPRINT, fingerprint);
+                    putMeta(db, META_CREATED, String.valueOf(now));
+                }
+                return null;
+            }
+        });
+        mPendingWrites.clear();
+    }
+
+    /**
+     * Returns the number of people and the highest person ID, or
+     * <code>null</code> if the contacts provider can't be queried. Only the
+     * first row of the result is read.
+     */
+    private String getPeopleFingerprint() {
+        Cursor cursor;
+        try {
+            cursor = mApplication.getContentResolver().query(People.CONTENT_URI,
+                    PEOPLE_FINGERPRINT_PROJECTION, null, null, People._ID + " DESC");
+        } catch (RuntimeException e) {
+            Log.w(Consts.TAG, "Unable to query contacts for the contact cache.", e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            long maxId = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            return cursor.getCount() + ":" + maxId;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getMeta(SQLiteDatabase db, String key) {
+        Cursor cursor = db.query("meta", new String[] { "value" }, "key = ?",
+                new String[] { key }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void putMeta(SQLiteDatabase db, String key, String value) {
+        ContentValues values = new ContentValues(2);
+        values.put("key", key);
+        values.put("value", value);
+        db.replace("meta", null, values);
+    }
+}
@@ -18,8 +18,11 @@ package tv.studer.smssync;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -27,6 +30,7 @@ import android.net.Uri;
 import android.provider.Contacts.ContactMethods;
 import android.provider.Contacts.People;
 import android.provider.Contacts.Phones;
+import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import com.fsck.k9.mail.Address;
@@ -40,6 +44,13 @@ import com.fsck.k9.mail.internet.TextBody;
 public class CursorToMessage {
     
     private static final String REFERENCE_UID_TEMPLATE = "<%s.%s@smssync.studer.tv>";
+
+    /** The columns of <code>content://sms</code> needed to create a message. */
+    static final String[] SMS_PROJECTION = new String[] {
+            SmsConsts.ID, SmsConsts.ADDRESS, SmsConsts.BODY, SmsConsts.DATE,
+            SmsConsts.THREAD_ID, SmsConsts.TYPE, SmsConsts.READ, SmsConsts.STATUS,
+            SmsConsts.PROTOCOL, SmsConsts.SERVICE_CENTER
+    };
     
     private static final String[] PHONE_PROJECTION = new String[] {
             Phones.PERSON_ID, People.NAME, Phones.NUMBER
@@ -49,27 +60,87 @@ public class CursorToMessage {
         ContactMethods.DATA
     };
 
+    private static final String[] PHONE_KEY_PROJECTION = new String[] {
+            Phones.PERSON_ID, People.NAME, Phones.NUMBER, Phones.NUMBER_KEY
+    };
+
+    private static final String[] PERSON_EMAIL_PROJECTION = new String[] {
+            ContactMethods.PERSON_ID, ContactMethods.DATA
+    };
+
     private static final String UNKNOWN_NUMBER = "unknown_number";
     
     private static final String UNKNOWN_EMAIL = "unknown.email";
     
     private static final String UNKNOWN_PERSON = "unknown.person";
 
-    private static final int MAX_PEOPLE_CACHE_SIZE = 100;
+    /** Maximum number of addresses kept in the people cache. */
+    private static final int MAX_PEOPLE_CACHE_SIZE = 500;
+
+    /** Number of rows looked ahead when prefetching contacts. */
+    private static final int PREFETCH_WINDOW = 250;
+
+    /** Maximum number of arguments of a single <code>IN (...)</code> query. */
+    private static final int MAX_QUERY_ARGS = 50;
+
+    /** Cache entry for addresses that don't belong to a contact. */
+    private static final PersonRecord UNKNOWN_PERSON_RECORD = new PersonRecord();
 
     private Context mContext;
 
     private Address mUserAddress;
 
+    /** Address to contact cache, least recently used entries are evicted first. */
     private Map<String, PersonRecord> mPeopleCache;
+
+    private int mPeopleCacheHits;
+
+    private int mPeopleCacheMisses;
+
+    private int mPersistentCacheHits;
+
+    /**
+     * Addresses put into the people cache by {@link #prefetchPeople(Cursor, int)}
+     * that weren't looked up yet. Their lookup was already counted when they
+     * were prefetched.
+     */
+    private Set<String> mPrefetchedAddresses = new HashSet<String>();
+
+    /** Persistent contact cache, <code>null</code> if not available. */
+    private ContactCache mContactCache;
     
     private String mReferenceValue;
     
     private boolean mMarkAsRead = false;
 
+    /** Row holder reused for every row read from the cursor. */
+    private final SmsRow mRow = new SmsRow();
+
+    /** The cursor the column indices in {@link #mRow} were resolved for. */
+    private Cursor mIndexedCursor;
+
+    /** Cursor position up to which contacts have been prefetched. */
+    private int mPrefetchedPosition;
+
     public CursorToMessage(Context ctx, String userEmail) {
+        this(ctx, userEmail, null);
+    }
+
+    /**
+     * @param contactCache Persistent contact cache consulted before querying
+     *            the contacts provider, may be <code>null</code>.
+     */
+    CursorToMessage(Context ctx, String userEmail, ContactCache contactCache) {
         mContext = ctx;
-        mPeopleCache = new HashMap<String, PersonRecord>();
+        mContactCache = contactCache;
+        mPeopleCache = new LinkedHashMap<String, PersonRecord>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PersonRecord> eldest) {
+                return size() > MAX_PEOPLE_CACHE_SIZE;
+            }
+        };
         mUserAddress = new Address(userEmail);
         
         mReferenceValue = PrefStore.getReferenceUid(ctx);
@@ -84,42 +155,52 @@ public class CursorToMessage {
     public ConversionResult cursorToMessageArray(Cursor cursor, int maxEntries)
             throws MessagingException {
         List<Message> messageList = new ArrayList<Message>(maxEntries);
+        long[] dates = new long[maxEntries];
+        long[] ids = new long[maxEntries];
         long maxDate = PrefStore.DEFAULT_MAX_SYNCED_DATE;
+        long maxId = -1;
 
-        String[] columns = cursor.getColumnNames();
-        int indexDate = cursor.getColumnIndex(SmsConsts.DATE);
+        if (cursor != mIndexedCursor) {
+            mRow.resolveColumns(cursor);
+            mIndexedCursor = cursor;
+            mPrefetchedPosition = -1;
+        }
+        if (cursor.getPosition() + maxEntries > mPrefetchedPosition) {
+            prefetchPeople(cursor, Math.max(maxEntries, PREFETCH_WINDOW));
+        }
+        SmsRow row = mRow;
         while (cursor.moveToNext()) {
-            HashMap<String, String> msgMap = new HashMap<String, String>(columns.length);
-
-            long date = cursor.getLong(indexDate);
-            if (date > maxDate) {
-                maxDate = date;
+            row.read(cursor);
+            if (row.date > maxDate || (row.date == maxDate && row.id > maxId)) {
+                maxDate = row.date;
+                maxId = row.id;
             }
-            for (int i = 0; i < columns.length; i++) {
-                msgMap.put(columns[i], cursor.getString(i));
-            }
-            messageList.add(messageFromHashMap(msgMap));
+            dates[messageList.size()] = row.date;
+            ids[messageList.size()] = row.id;
+            messageList.add(messageFromRow(row));
             if (messageList.size() == maxEntries) {
                 // Only consume up to 'maxEntries' items.
                 break;
             }
         }
-        //TODO: Be more clever and MFU or LRU people.
-        if (mPeopleCache.size() > MAX_PEOPLE_CACHE_SIZE) {
-            mPeopleCache.clear();
+        if (mContactCache != null) {
+            mContactCache.flush();
         }
 
         ConversionResult result = new ConversionResult();
         result.maxDate = maxDate;
+        result.maxId = maxId;
         result.messageList = messageList;
+        result.dates = dates;
+        result.ids = ids;
         return result;
     }
 
-    private Message messageFromHashMap(HashMap<String, String> msgMap) throws MessagingException {
+    private Message messageFromRow(SmsRow row) throws MessagingException {
         Message msg = new MimeMessage();
 
         PersonRecord record = null;
-        String address = msgMap.get("address");
+        String address = row.address;
         if (address != null) {
             address = address.trim();
             if (address.length() > 0) {
@@ -136,10 +217,9 @@ public class CursorToMessage {
 
         msg.setSubject("SMS with " + record.name);
 
-        TextBody body = new TextBody(msgMap.get(SmsConsts.BODY));
+        TextBody body = new TextBody(row.body);
 
-        int messageType = Integer.valueOf(msgMap.get(SmsConsts.TYPE));
-        if (SmsConsts.MESSAGE_TYPE_INBOX == messageType) {
+        if (SmsConsts.MESSAGE_TYPE_INBOX == row.type) {
             // Received message
             msg.setFrom(record.address);
             msg.setRecipient(RecipientType.TO, mUserAddress);
@@ -150,7 +230,7 @@ public class CursorToMessage {
         }
 
         msg.setBody(body);
-        Date then = new Date(Long.valueOf(msgMap.get(SmsConsts.DATE)));
+        Date then = new Date(row.date);
         msg.setSentDate(then);
         msg.setInternalDate(then);
         // Threading by person ID, not by thread ID. I think this value is more
@@ -158,23 +238,64 @@ public class CursorToMessage {
         msg.setHeader("References", String.format(REFERENCE_UID_TEMPLATE, mReferenceValue,
                 record._id));
         
-        msg.setHeader("X-smssync-id", msgMap.get(SmsConsts.ID));
+        // Null columns result in a missing header, numbers are only converted
+        // to strings here.
+        msg.setHeader("X-smssync-id", String.valueOf(row.id));
         msg.setHeader("X-smssync-address", address);
-        msg.setHeader("X-smssync-type", msgMap.get(SmsConsts.TYPE));
-        msg.setHeader("X-smssync-date", msgMap.get(SmsConsts.DATE));
-        msg.setHeader("X-smssync-thread", msgMap.get(SmsConsts.THREAD_ID));
-        msg.setHeader("X-smssync-read", msgMap.get(SmsConsts.READ));
-        msg.setHeader("X-smssync-status", msgMap.get(SmsConsts.STATUS));
-        msg.setHeader("X-smssync-protocol", msgMap.get(SmsConsts.PROTOCOL));
-        msg.setHeader("X-smssync-service_center", msgMap.get(SmsConsts.SERVICE_CENTER));
+        msg.setHeader("X-smssync-type", String.valueOf(row.type));
+        msg.setHeader("X-smssync-date", String.valueOf(row.date));
+        msg.setHeader("X-smssync-thread", row.hasThreadId ? String.valueOf(row.threadId) : null);
+        msg.setHeader("X-smssync-read", row.hasRead ? String.valueOf(row.read) : null);
+        msg.setHeader("X-smssync-status", row.hasStatus ? String.valueOf(row.status) : null);
+        msg.setHeader("X-smssync-protocol", row.hasProtocol ? String.valueOf(row.protocol) : null);
+        msg.setHeader("X-smssync-service_center", row.serviceCenter);
         msg.setHeader("X-smssync-backup_time", new Date().toGMTString());
         msg.setFlag(Flag.SEEN, mMarkAsRead);
         
         return msg;
     }
 
+    /**
+     * Returns the number of contact lookups answered by the people cache.
+     * Addresses put into it by a prefetch are counted when they are prefetched,
+     * not as hits.
+     */
+    public int getPeopleCacheHits() {
+        return mPeopleCacheHits;
+    }
+
+    /**
+     * Returns the number of contact lookups answered by the persistent contact
+     * cache.
+     */
+    public int getPersistentCacheHits() {
+        return mPersistentCacheHits;
+    }
+
+    /**
+     * Returns the number of contact lookups that required a query, including
+     * the ones resolved by a prefetch.
+     */
+    public int getPeopleCacheMisses() {
+        return mPeopleCacheMisses;
+    }
+
     private PersonRecord lookupPerson(String address) {
-        if (!mPeopleCache.containsKey(address)) {
+        PersonRecord record = mPeopleCache.get(address);
+        boolean counted = mPrefetchedAddresses.remove(address);
+        if (record != null) {
+            if (!counted) {
+                mPeopleCacheHits++;
+            }
+        } else {
+            record = getPersistentRecord(address);
+            if (record != null) {
+                mPeopleCache.put(address, record);
+                mPersistentCacheHits++;
+            }
+        }
+        if (record == null) {
+            mPeopleCacheMisses++;
             // Look phone number
             Uri personUri = Uri.withAppendedPath(Phones.CONTENT_FILTER_URL, address);
             Cursor phoneCursor = mContext.getContentResolver().query(personUri, PHONE_PROJECTION,
@@ -190,18 +311,216 @@ public class CursorToMessage {
 
                 String primaryEmail = getEmail(number, personId);
 
-                PersonRecord record = new PersonRecord();
+                record = new PersonRecord();
                 record._id = String.valueOf(personId);
                 record.name = name;
                 record.address = new Address(primaryEmail, name);
-
-                mPeopleCache.put(address, record);
             } else {
+                phoneCursor.close();
                 Log.v(Consts.TAG, "Looked up unknown address: " + address);
-                return null;
+                record = UNKNOWN_PERSON_RECORD;
+            }
+            cachePerson(address, record);
+        }
+        return (record == UNKNOWN_PERSON_RECORD) ? null : record;
+    }
+
+    /**
+     * Returns the record of the given address from the persistent contact
+     * cache, or <code>null</code> if it is not cached there.
+     */
+    private PersonRecord getPersistentRecord(String address) {
+        if (mContactCache == null) {
+            return null;
+        }
+        ContactCache.Entry entry = mContactCache.get(address);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.personId == null) {
+            return UNKNOWN_PERSON_RECORD;
+        }
+        PersonRecord record = new PersonRecord();
+        record._id = entry.personId;
+        record.name = entry.name;
+        record.address = new Address(entry.email, entry.name);
+        return record;
+    }
+
+    /**
+     * Puts a looked up record into the people cache and the persistent
+     * contact cache.
+     */
+    private void cachePerson(String address, PersonRecord record) {
+        mPeopleCache.put(address, record);
+        if (mContactCache != null) {
+            if (record == UNKNOWN_PERSON_RECORD) {
+                mContactCache.put(address, null, null, null);
+            } else {
+                mContactCache.put(address, record._id, record.name,
+                        record.address.getAddress());
+            }
+        }
+    }
+
+    /**
+     * Resolves the addresses of the next <code>rows</code> rows of the cursor
+     * that are not in the people cache yet with a few batched queries and
+     * puts them into the cache. The cursor position is not changed.
+     * <p>
+     * Phones are matched by their exact number key. Addresses that can't be
+     * matched that way are left to {@link #lookupPerson(String)}, which uses
+     * the more lenient filter URI.
+     * </p>
+     */
+    private void prefetchPeople(Cursor cursor, int rows) {
+        int start = cursor.getPosition();
+        Map<String, List<String>> addressesByKey = new HashMap<String, List<String>>();
+        int numAddresses = 0;
+        for (int i = 0; i < rows && cursor.moveToNext(); i++) {
+            String address = cursor.getString(mRow.indexAddress);
+            if (address == null) {
+                continue;
             }
+            address = address.trim();
+            String key = PhoneNumberUtils.getStrippedReversed(address);
+            if (key == null || key.length() == 0 || mPeopleCache.containsKey(address)) {
+                continue;
+            }
+            PersonRecord persistentRecord = getPersistentRecord(address);
+            if (persistentRecord != null) {
+                mPeopleCache.put(address, persistentRecord);
+                mPrefetchedAddresses.add(address);
+                mPersistentCacheHits++;
+                continue;
+            }
+            List<String> addresses = addressesByKey.get(key);
+            if (addresses == null) {
+                addresses = new ArrayList<String>(1);
+                addressesByKey.put(key, addresses);
+            }
+            if (!addresses.contains(address)) {
+                addresses.add(address);
+                numAddresses++;
+            }
+        }
+        mPrefetchedPosition = cursor.getPosition();
+        cursor.moveToPosition(start);
+        if (addressesByKey.isEmpty()) {
+            return;
+        }
+
+        // Look up the phones of all addresses by their number key.
+        Map<String, PersonRecord> records = new HashMap<String, PersonRecord>();
+        Map<Long, List<PersonRecord>> recordsByPerson = new HashMap<Long, List<PersonRecord>>();
+        List<String> keys = new ArrayList<String>(addressesByKey.keySet());
+        int numQueries = 0;
+        for (int i = 0; i < keys.size(); i += MAX_QUERY_ARGS) {
+            List<String> chunk = keys.subList(i, Math.min(i + MAX_QUERY_ARGS, keys.size()));
+            Cursor phoneCursor = mContext.getContentResolver().query(Phones.CONTENT_URI,
+                    PHONE_KEY_PROJECTION, inSelection(Phones.NUMBER_KEY, chunk.size()),
+                    chunk.toArray(new String[chunk.size()]), null);
+            numQueries++;
+            try {
+                int indexPersonId = phoneCursor.getColumnIndex(Phones.PERSON_ID);
+                int indexName = phoneCursor.getColumnIndex(People.NAME);
+                int indexNumber = phoneCursor.getColumnIndex(Phones.NUMBER);
+                int indexKey = phoneCursor.getColumnIndex(Phones.NUMBER_KEY);
+                while (phoneCursor.moveToNext()) {
+                    List<String> addresses = addressesByKey.get(phoneCursor.getString(indexKey));
+                    if (addresses == null || records.containsKey(addresses.get(0))) {
+                        continue;
+                    }
+                    long personId = phoneCursor.getLong(indexPersonId);
+                    PersonRecord record = new PersonRecord();
+                    record._id = String.valueOf(personId);
+                    record.name = phoneCursor.getString(indexName);
+                    record.number = phoneCursor.getString(indexNumber);
+                    for (String address : addresses) {
+                        records.put(address, record);
+                    }
+                    List<PersonRecord> personRecords = recordsByPerson.get(personId);
+                    if (personRecords == null) {
+                        personRecords = new ArrayList<PersonRecord>(1);
+                        recordsByPerson.put(personId, personRecords);
+                    }
+                    personRecords.add(record);
+                }
+            } finally {
+                phoneCursor.close();
+            }
+        }
+
+        // Look up the e-mail addresses of all persons found.
+        Map<Long, String> firstEmails = new HashMap<Long, String>();
+        Map<Long, String> gmailEmails = new HashMap<Long, String>();
+        List<String> personIds = new ArrayList<String>(recordsByPerson.size());
+        for (Long personId : recordsByPerson.keySet()) {
+            if (personId > 0) {
+                personIds.add(String.valueOf(personId));
+            }
+        }
+        for (int i = 0; i < personIds.size(); i += MAX_QUERY_ARGS) {
+            List<String> chunk = personIds.subList(i, Math.min(i + MAX_QUERY_ARGS,
+                    personIds.size()));
+            Cursor emailCursor = mContext.getContentResolver().query(
+                    ContactMethods.CONTENT_EMAIL_URI, PERSON_EMAIL_PROJECTION,
+                    inSelection(ContactMethods.PERSON_ID, chunk.size()),
+                    chunk.toArray(new String[chunk.size()]), null);
+            numQueries++;
+            try {
+                int indexPersonId = emailCursor.getColumnIndex(ContactMethods.PERSON_ID);
+                int indexData = emailCursor.getColumnIndex(ContactMethods.DATA);
+                while (emailCursor.moveToNext()) {
+                    long personId = emailCursor.getLong(indexPersonId);
+                    String email = emailCursor.getString(indexData);
+                    if (!firstEmails.containsKey(personId)) {
+                        firstEmails.put(personId, email);
+                    }
+                    if (!gmailEmails.containsKey(personId) && isGmailAddress(email)) {
+                        gmailEmails.put(personId, email);
+                    }
+                }
+            } finally {
+                emailCursor.close();
+            }
+        }
+
+        for (Map.Entry<Long, List<PersonRecord>> entry : recordsByPerson.entrySet()) {
+            String primaryEmail = gmailEmails.get(entry.getKey());
+            if (primaryEmail == null) {
+                primaryEmail = firstEmails.get(entry.getKey());
+            }
+            for (PersonRecord record : entry.getValue()) {
+                record.address = new Address((primaryEmail != null) ? primaryEmail
+                        : getUnknownEmail(record.number), record.name);
+            }
+        }
+        // Addresses that weren't found are counted by lookupPerson(), which
+        // queries them again.
+        for (Map.Entry<String, PersonRecord> entry : records.entrySet()) {
+            cachePerson(entry.getKey(), entry.getValue());
+            mPrefetchedAddresses.add(entry.getKey());
+            mPeopleCacheMisses++;
+        }
+
+        Log.d(Consts.TAG, "Prefetched " + records.size() + " of " + numAddresses
+                + " addresses with " + numQueries + " queries.");
+    }
+
+    /**
+     * Returns a selection of the form <code>column IN (?,?,...)</code>.
+     */
+    private static String inSelection(String column, int numArgs) {
+        StringBuilder sb = new StringBuilder(column.length() + 6 + 2 * numArgs);
+        sb.append(column).append(" IN (");
+        for (int i = 0; i < numArgs; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
         }
-        return mPeopleCache.get(address);
+        return sb.append(')').toString();
     }
 
     private String getEmail(String number, long personId) {
@@ -261,7 +580,90 @@ public class CursorToMessage {
     public static class ConversionResult {
         public long maxDate;
 
+        /** The _id of the message with {@link #maxDate} (highest one if several). */
+        public long maxId;
+
         public List<Message> messageList;
+
+        /** The date and _id of each message of {@link #messageList}. */
+        public long[] dates;
+        public long[] ids;
+    }
+
+    /**
+     * A single row of <code>content://sms</code>. Numeric columns are read as
+     * primitives, the <code>has*</code> fields tell whether the nullable ones
+     * were set.
+     */
+    private static class SmsRow {
+        private int indexId;
+        private int indexAddress;
+        private int indexBody;
+        private int indexDate;
+        private int indexThreadId;
+        private int indexType;
+        private int indexRead;
+        private int indexStatus;
+        private int indexProtocol;
+        private int indexServiceCenter;
+
+        long id;
+
+        String address;
+
+        String body;
+
+        long date;
+
+        long threadId;
+
+        boolean hasThreadId;
+
+        int type;
+
+        int read;
+
+        boolean hasRead;
+
+        int status;
+
+        boolean hasStatus;
+
+        int protocol;
+
+        boolean hasProtocol;
+
+        String serviceCenter;
+
+        void resolveColumns(Cursor cursor) {
+            indexId = cursor.getColumnIndexOrThrow(SmsConsts.ID);
+            indexAddress = cursor.getColumnIndexOrThrow(SmsConsts.ADDRESS);
+            indexBody = cursor.getColumnIndexOrThrow(SmsConsts.BODY);
+            indexDate = cursor.getColumnIndexOrThrow(SmsConsts.DATE);
+            indexThreadId = cursor.getColumnIndexOrThrow(SmsConsts.THREAD_ID);
+            indexType = cursor.getColumnIndexOrThrow(SmsConsts.TYPE);
+            indexRead = cursor.getColumnIndexOrThrow(SmsConsts.READ);
+            indexStatus = cursor.getColumnIndexOrThrow(SmsConsts.STATUS);
+            indexProtocol = cursor.getColumnIndexOrThrow(SmsConsts.PROTOCOL);
+            indexServiceCenter = cursor.getColumnIndexOrThrow(SmsConsts.SERVICE_CENTER);
+        }
+
+        void read(Cursor cursor) {
+            id = cursor.getLong(indexId);
+            address = cursor.getString(indexAddress);
+            body = cursor.getString(indexBody);
+            date = cursor.getLong(indexDate);
+            type = cursor.getInt(indexType);
+            hasThreadId = !cursor.isNull(indexThreadId);
+            threadId = hasThreadId ? cursor.getLong(indexThreadId) : 0;
+            hasRead = !cursor.isNull(indexRead);
+            read = hasRead ? cursor.getInt(indexRead) : 0;
+            hasStatus = !cursor.isNull(indexStatus);
+            status = hasStatus ? cursor.getInt(indexStatus) : 0;
+            hasProtocol = !cursor.isNull(indexProtocol);
+            protocol = hasProtocol ? cursor.getInt(indexProtocol) : 0;
+            serviceCenter = cursor.getString(indexServiceCenter);
+        }
     }
 
     private static class PersonRecord {
@@ -269,6 +671,8 @@ public class CursorToMessage {
 
         String name;
 
+        String number;
+
         Address address;
     }
 }
@@ -0,0 +1,53 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.fsck.k9.mail.store.imap.ImapDiscovery;
+import com.fsck.k9.mail.store.imap.ImapDiscoveryCache;
+
+/**
+ * Keeps the IMAP server discovery results (capabilities, namespace prefix
+ * and delimiter) in a separate preferences file, so warm backups go straight
+ * from LOGIN to the folder commands.
+ */
+class ImapDiscoveryPrefs implements ImapDiscoveryCache {
+    private static final String PREFS_NAME = "imap_discovery";
+
+    private final SharedPreferences mPrefs;
+
+    ImapDiscoveryPrefs(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public ImapDiscovery get(String key) {
+        String serialized = mPrefs.getString(key, null);
+        return (serialized == null) ? null : ImapDiscovery.parse(serialized);
+    }
+
+    @Override
+    public void put(String key, ImapDiscovery discovery) {
+        mPrefs.edit().putString(key, discovery.serialize()).commit();
+    }
+
+    @Override
+    public void remove(String key) {
+        mPrefs.edit().remove(key).commit();
+    }
+}
@@ -0,0 +1,162 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tv.studer.smssync;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import tv.studer.smssync.CursorToMessage.ConversionResult;
+import android.database.Cursor;
+import android.os.Process;
+import android.util.Log;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.SpooledOutputStream;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.SerializedMessage;
+
+/**
+ * Thread converting SMS from a cursor into serialized messages ahead of the upload.
+ * <p>
+ * Batches are handed to the consumer in cursor order through a bounded queue,
+ * so contact lookups and MIME serialization overlap with network waits while
+ * the upload order (and thus the max synced date checkpoint) stays the same.
+ * An empty batch marks the end of the cursor.
+ * </p>
+ */
+class MessageProducer extends Thread {
+
+    /** Number of converted batches that may wait for the upload. */
+    private static final int QUEUE_CAPACITY = 4;
+
+    private final Cursor mCursor;
+
+    private final CursorToMessage mConverter;
+
+    private final int mMaxEntries;
+
+    private final BlockingQueue<ConversionResult> mQueue =
+            new ArrayBlockingQueue<ConversionResult>(QUEUE_CAPACITY);
+
+    /** Marker put into the queue when conversion failed. See {@link #mError}. */
+    private final ConversionResult mErrorMarker = new ConversionResult();
+
+    private volatile Exception mError;
+
+    private volatile long mConversionNanos;
+
+    private volatile long mSerializationNanos;
+
+    MessageProducer(Cursor cursor, CursorToMessage converter, int maxEntries) {
+        super("MessageProducer");
+        mCursor = cursor;
+        mConverter = converter;
+        mMaxEntries = maxEntries;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        SpooledOutputStream buffer = new SpooledOutputStream(Integer.MAX_VALUE, null);
+        boolean finished = false;
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                ConversionResult result = mConverter.cursorToMessageArray(mCursor, mMaxEntries);
+                List<Message> messages = result.messageList;
+                long converted = System.nanoTime();
+                for (int i = 0; i < messages.size(); i++) {
+                    messages.set(i, new SerializedMessage((MimeMessage) messages.get(i), buffer));
+                }
+                mConversionNanos += converted - start;
+                mSerializationNanos += System.nanoTime() - converted;
+                mQueue.put(result);
+                if (messages.isEmpty()) {
+                    break;
+                }
+            }
+            finished = true;
+        } catch (InterruptedException e) {
+            // Stopped by the consumer.
+            finished = true;
+        } catch (Exception e) {
+            Log.w(Consts.TAG, "Message conversion failed.", e);
+            mError = e;
+        } finally {
+            if (!finished) {
+                // Also reached for errors, e.g. OutOfMemoryError, so take() doesn't block forever.
+                try {
+                    mQueue.put(mErrorMarker);
+                } catch (InterruptedException ie) {
+                    // Stopped by the consumer.
+                }
+            }
+            buffer.close();
+        }
+    }
+
+    /**
+     * Returns the next batch of converted messages, blocking until it is
+     * available. An empty message list indicates that the cursor has been
+     * fully consumed.
+     *
+     * @throws MessagingException if converting the messages failed.
+     */
+    ConversionResult take() throws MessagingException {
+        ConversionResult result;
+        try {
+            result = mQueue.take();
+        } catch (InterruptedException e) {
+            throw new MessagingException("Interrupted while waiting for messages", e);
+        }
+        if (result == mErrorMarker) {
+            if (mError instanceof MessagingException) {
+                throw (MessagingException) mError;
+            }
+            throw new MessagingException("Message conversion failed", mError);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time spent converting SMS to MIME messages in milliseconds.
+     */
+    long getConversionMillis() {
+        return mConversionNanos / 1000000;
+    }
+
+    /**
+     * Returns the time spent serializing MIME messages in milliseconds.
+     */
+    long getSerializationMillis() {
+        return mSerializationNanos / 1000000;
+    }
+
+    /**
+     * Stops the conversion and waits for the thread to finish. The cursor must
+     * not be closed before this method returns.
+     */
+    void shutdown() {
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Log.w(Consts.TAG, "Interrupted while waiting for the message producer.");
+        }
+    }
+}
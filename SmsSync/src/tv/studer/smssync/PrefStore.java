@@ -65,9 +65,51 @@ public class PrefStore {
     
     /** Preference for storing the maximum items per sync. */
     static final String PREF_MAX_ITEMS_PER_SYNC = "max_items_per_sync";
+
+    /** Preference for storing the number of messages sent per server request. */
+    static final String PREF_MAX_MSG_PER_REQUEST = "max_msg_per_request";
     
     /** Preference for storing whether backed up messages should be marked as read on Gmail. */
     static final String PREF_MARK_AS_READ = "mark_as_read";
+
+    /**
+     * Preference for storing on which networks the IMAP connection is compressed. One of
+     * {@link #COMPRESSION_ALWAYS}, {@link #COMPRESSION_MOBILE} or {@link #COMPRESSION_NEVER}.
+     */
+    static final String PREF_COMPRESSION = "compression";
+
+    static final String COMPRESSION_ALWAYS = "always";
+
+    static final String COMPRESSION_MOBILE = "mobile";
+
+    static final String COMPRESSION_NEVER = "never";
+
+    /** Preference for storing whether the whole history is backed up in one run. */
+    static final String PREF_BULK_IMPORT = "bulk_import";
+
+    /**
+     * Preference for storing whether SSL/TLS connections use the non-blocking
+     * NIO transport instead of an SSL socket.
+     */
+    static final String PREF_NIO_TRANSPORT = "nio_transport";
+
+    /**
+     * Preference for storing the size of the kernel socket buffers in bytes, 0
+     * for the system default.
+     */
+    static final String PREF_SOCKET_BUFFER_SIZE = "socket_buffer_size";
+
+    /**
+     * Preference for storing the size of the input buffer of a connection in
+     * bytes. The output buffer is twice as large.
+     */
+    static final String PREF_STREAM_BUFFER_SIZE = "stream_buffer_size";
+
+    /**
+     * Preference for storing the server, user and label of the last backup
+     * folder known to exist, so it's not looked up before every backup.
+     */
+    static final String PREF_VERIFIED_IMAP_FOLDER = "verified_imap_folder";
     
     /** Default value for {@link PrefStore#PREF_MAX_SYNCED_DATE}. */
     static final long DEFAULT_MAX_SYNCED_DATE = -1;
@@ -102,9 +144,27 @@ public class PrefStore {
     /** Default value for {@link #PREF_MAX_ITEMS_PER_SYNC}. */
     static final String DEFAULT_MAX_ITEMS_PER_SYNC = "100";
 
+    /** Default value for {@link #PREF_MAX_MSG_PER_REQUEST}. */
+    static final String DEFAULT_MAX_MSG_PER_REQUEST = "10";
+
     /** Default value for {@link #PREF_MARK_AS_READ}. */
     static final boolean DEFAULT_MARK_AS_READ = false;
 
+    /** Default value for {@link #PREF_COMPRESSION}. */
+    static final String DEFAULT_COMPRESSION = COMPRESSION_ALWAYS;
+
+    /** Default value for {@link #PREF_BULK_IMPORT}. */
+    static final boolean DEFAULT_BULK_IMPORT = false;
+
+    /** Default value for {@link #PREF_NIO_TRANSPORT}. */
+    static final boolean DEFAULT_NIO_TRANSPORT = false;
+
+    /** Default value for {@link #PREF_SOCKET_BUFFER_SIZE}. */
+    static final String DEFAULT_SOCKET_BUFFER_SIZE = "0";
+
+    /** Default value for {@link #PREF_STREAM_BUFFER_SIZE}. */
+    static final String DEFAULT_STREAM_BUFFER_SIZE = "8192";
+
     static SharedPreferences getSharedPreferences(Context ctx) {
         return PreferenceManager.getDefaultSharedPreferences(ctx);
     }
@@ -185,6 +245,12 @@ public class PrefStore {
                 DEFAULT_MAX_ITEMS_PER_SYNC);
         return Integer.valueOf(str);
     }
+
+    static int getMaxMsgPerRequest(Context ctx) {
+        String str = getSharedPreferences(ctx).getString(PREF_MAX_MSG_PER_REQUEST,
+                DEFAULT_MAX_MSG_PER_REQUEST);
+        return Integer.valueOf(str);
+    }
     
     /**
      * Returns whether an IMAP folder is valid. This is the case if the name
@@ -272,6 +338,53 @@ public class PrefStore {
         editor.commit();
     }
     
+    static String getCompression(Context ctx) {
+        return getSharedPreferences(ctx).getString(PREF_COMPRESSION, DEFAULT_COMPRESSION);
+    }
+
+    static boolean isBulkImport(Context ctx) {
+        return getSharedPreferences(ctx).getBoolean(PREF_BULK_IMPORT, DEFAULT_BULK_IMPORT);
+    }
+
+    static boolean isNioTransport(Context ctx) {
+        return getSharedPreferences(ctx).getBoolean(PREF_NIO_TRANSPORT, DEFAULT_NIO_TRANSPORT);
+    }
+
+    static int getSocketBufferSize(Context ctx) {
+        String str = getSharedPreferences(ctx).getString(PREF_SOCKET_BUFFER_SIZE,
+                DEFAULT_SOCKET_BUFFER_SIZE);
+        return Integer.valueOf(str);
+    }
+
+    static int getStreamBufferSize(Context ctx) {
+        String str = getSharedPreferences(ctx).getString(PREF_STREAM_BUFFER_SIZE,
+                DEFAULT_STREAM_BUFFER_SIZE);
+        return Integer.valueOf(str);
+    }
+
+    /**
+     * Returns whether the configured backup folder is known to exist on the
+     * configured server.
+     */
+    static boolean isImapFolderVerified(Context ctx) {
+        return getImapFolderId(ctx).equals(
+                getSharedPreferences(ctx).getString(PREF_VERIFIED_IMAP_FOLDER, null));
+    }
+
+    static void setImapFolderVerified(Context ctx, boolean verified) {
+        Editor editor = getSharedPreferences(ctx).edit();
+        if (verified) {
+            editor.putString(PREF_VERIFIED_IMAP_FOLDER, getImapFolderId(ctx));
+        } else {
+            editor.remove(PREF_VERIFIED_IMAP_FOLDER);
+        }
+        editor.commit();
+    }
+
+    private static String getImapFolderId(Context ctx) {
+        return getImapServerUri(ctx) + "/" + getLoginUsername(ctx) + "/" + getImapFolder(ctx);
+    }
+
     static boolean isFirstSync(Context ctx) {
         return !getSharedPreferences(ctx).contains(PREF_MAX_SYNCED_DATE);
     }
@@ -281,7 +394,10 @@ public class PrefStore {
         editor.remove(PREF_LOGIN_PASSWORD);
         editor.remove(PREF_MAX_SYNCED_DATE);
         editor.remove(PREF_LAST_SYNC);
+        editor.remove(PREF_VERIFIED_IMAP_FOLDER);
         editor.commit();
+        CheckpointJournal.delete(ctx);
+        SyncMetricsLog.delete(ctx);
     }
 
     static boolean isValidImapServerUri(String imapServerUri) {
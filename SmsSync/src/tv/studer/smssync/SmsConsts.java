@@ -23,6 +23,8 @@ public class SmsConsts {
 
     public static final String ID = "_id";
 
+    public static final String ADDRESS = "address";
+
     public static final String BODY = "body";
 
     public static final String DATE = "date";
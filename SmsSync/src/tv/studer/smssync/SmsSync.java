@@ -141,6 +141,9 @@ public class SmsSync extends PreferenceActivity implements OnPreferenceChangeLis
         
         pref = prefMgr.findPreference(PrefStore.PREF_MAX_ITEMS_PER_SYNC);
         pref.setOnPreferenceChangeListener(this);
+
+        pref = prefMgr.findPreference(PrefStore.PREF_MAX_MSG_PER_REQUEST);
+        pref.setOnPreferenceChangeListener(this);
     }
 
     @Override
@@ -158,6 +161,7 @@ public class SmsSync extends PreferenceActivity implements OnPreferenceChangeLis
         updateImapServerUriLabelFromPref();
         updateSecurityProtocolLabelFromPref();
         updateMaxItemsPerSync(null);
+        updateMaxMsgPerRequest(null);
     }
     
     
@@ -321,7 +325,8 @@ public class SmsSync extends PreferenceActivity implements OnPreferenceChangeLis
                                     progressMax = SmsSyncService.getItemsToSyncCount();
                                     progressVal = backedUpCount;
                                     if (backedUpCount ==
-                                            PrefStore.getMaxItemsPerSync(SmsSync.this)) {
+                                            PrefStore.getMaxItemsPerSync(SmsSync.this)
+                                            && !PrefStore.isBulkImport(SmsSync.this)) {
                                         // Maximum msg per sync reached.
                                         statusDetails = getResources().getString(
                                                 R.string.status_done_details_max_per_sync,
@@ -828,6 +833,8 @@ public class SmsSync extends PreferenceActivity implements OnPreferenceChangeLis
             // }
         } else if (PrefStore.PREF_MAX_ITEMS_PER_SYNC.equals(preference.getKey())) {
             updateMaxItemsPerSync((String) newValue);
+        } else if (PrefStore.PREF_MAX_MSG_PER_REQUEST.equals(preference.getKey())) {
+            updateMaxMsgPerRequest((String) newValue);
         } else if (PrefStore.PREF_SECURITY_PROTOCOL.equals(preference.getKey())) {
             String securityProtocol = newValue.toString();
             preference.setTitle(securityProtocol);
@@ -874,4 +881,12 @@ public class SmsSync extends PreferenceActivity implements OnPreferenceChangeLis
         }
         pref.setTitle(newValue);
     }
+
+    private void updateMaxMsgPerRequest(String newValue) {
+        Preference pref = getPreferenceManager().findPreference(PrefStore.PREF_MAX_MSG_PER_REQUEST);
+        if (newValue == null) {
+            newValue = String.valueOf(PrefStore.getMaxMsgPerRequest(this));
+        }
+        pref.setTitle(newValue);
+    }
 }
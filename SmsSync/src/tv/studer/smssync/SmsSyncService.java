@@ -15,11 +15,14 @@
 
 package tv.studer.smssync;
 
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.Locale;
 
 import tv.studer.smssync.CursorToMessage.ConversionResult;
+import tv.studer.smssync.SyncMetrics.Phase;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -32,22 +35,28 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.AppendFailedException;
 import com.fsck.k9.mail.CertificateValidationException;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.FolderNotFoundException;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.store.ImapStore;
+import com.fsck.k9.mail.store.imap.CompressionStatistics;
+import com.fsck.k9.mail.store.imap.ConnectionStatistics;
+import com.fsck.k9.net.ssl.HandshakeStatistics;
+import com.fsck.k9.net.ssl.SSLContextCache;
 import com.fsck.k9.security.LocalKeyStore;
 
 public class SmsSyncService extends Service {
 
-    /** Number of messages sent per sync request. */
-    private static final int MAX_MSG_PER_REQUEST = 1;
-    
     /** Flag indicating whether this service is already running. */
     // Should this be split into sIsRunning and sIsWorking? One for the
     // service, the other for the actual backing up?
@@ -83,6 +92,14 @@ public class SmsSyncService extends Service {
      */
     private static StateChangeListener sStateChangeListener;
 
+    /**
+     * This {@link SyncMetricsListener} is notified at the end of each backup.
+     */
+    private static SyncMetricsListener sSyncMetricsListener;
+
+    /** Metrics of the last finished backup. */
+    private static SyncMetrics sLastSyncMetrics;
+
     /**
      * A wakelock held while this service is working.
      */
@@ -98,6 +115,23 @@ public class SmsSyncService extends Service {
      * should finish working ASAP.
      */
     private static boolean sCanceled;
+
+    /** Time span of the messages uploaded in one bulk import chunk. */
+    private static final long BULK_IMPORT_CHUNK_SPAN = 30 * 24 * 60 * 60 * 1000L;
+
+    /** Number of reconnects after consecutive failures during a bulk import. */
+    private static final int BULK_IMPORT_MAX_RETRIES = 6;
+
+    /** Delay before the first reconnect in milliseconds, doubled for each further one. */
+    private static final long BULK_IMPORT_INITIAL_BACKOFF = 2000;
+
+    private static final long BULK_IMPORT_MAX_BACKOFF = 60 * 1000;
+
+    /** Metrics of the running backup, <code>null</code> if messages are skipped. */
+    private SyncMetrics mMetrics;
+
+    /** Store of the running backup, used to collect its connection statistics. */
+    private ImapStore mImapStore;
     
     public enum SmsSyncState {
         IDLE, CALC, LOGIN, SYNC, AUTH_FAILED, GENERAL_ERROR, CANCELED, MISSING_CERTIFICATE;
@@ -113,16 +147,23 @@ public class SmsSyncService extends Service {
             PowerManager pMgr = (PowerManager) ctx.getSystemService(POWER_SERVICE);
             sWakeLock = pMgr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                     "SmsSyncService.sync() wakelock.");
-            
-            WifiManager wMgr = (WifiManager) ctx.getSystemService(WIFI_SERVICE);
-            sWifiLock = wMgr.createWifiLock("SMS Backup");
         }
         sWakeLock.acquire();
-        sWifiLock.acquire();
     }
     
     private static void releaseWakeLock(Context ctx) {
         sWakeLock.release();
+    }
+
+    private static void acquireWifiLock(Context ctx) {
+        if (sWifiLock == null) {
+            WifiManager wMgr = (WifiManager) ctx.getSystemService(WIFI_SERVICE);
+            sWifiLock = wMgr.createWifiLock("SMS Backup");
+        }
+        sWifiLock.acquire();
+    }
+
+    private static void releaseWifiLock(Context ctx) {
         sWifiLock.release();
     }
     
@@ -135,13 +176,18 @@ public class SmsSyncService extends Service {
         synchronized (this.getClass()) {
             // Only start a sync if there's no other sync going on at this time.
             if (!sIsRunning) {
-                acquireWakeLock(this);
                 sIsRunning = true;
+                // Keep the CPU awake from now on: alarms only hold a wake lock
+                // while they are delivered, not until the sync thread runs.
+                acquireWakeLock(this);
                 // Start sync in new thread.
                 new Thread() {
                     public void run() {
                         // Lower thread priority a little. We're not the UI.
                         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        // The wifi lock is only taken once it's clear that
+                        // there is something to do.
+                        boolean wifiLocked = false;
                         try {
                             // On first sync we need to know whether to skip or
                             // sync current messages.
@@ -162,43 +208,58 @@ public class SmsSyncService extends Service {
                                  * @param skipMessages whether to skip all messages on this device.
                             */
                             if (intent.getBooleanExtra(Consts.KEY_SKIP_MESSAGES, false)) {
-                                // Only update the max synced ID, do not really
+                                // Only update the checkpoint, do not really
                                 // sync.
-                                updateMaxSyncedDate(getMaxItemDate());
+                                skipMessages();
                                 PrefStore.setLastSync(SmsSyncService.this);
                                 sItemsToSync = 0;
                                 sCurrentSyncedItems = 0;
                                 updateState(SmsSyncState.IDLE);
                                 Log.i(Consts.TAG, "All messages skipped.");
                             } else {
-                                int numRetries = intent.getIntExtra(Consts.KEY_NUM_RETRIES, 0);
-                                GeneralErrorException lastException = null;
-                                Account account = getAccount(SmsSyncService.this);
+                                mMetrics = new SyncMetrics();
+                                mMetrics.start();
+                                if (intent.getBooleanExtra(Consts.KEY_SCHEDULED, false)
+                                        && !hasItemsToSync()) {
+                                    // Nothing to back up: don't wake up the radio
+                                    // and connect to the server just to find out.
+                                    mMetrics.setLocalOnly();
+                                    finishEmptySync();
+                                } else {
+                                    int numRetries = intent.getIntExtra(Consts.KEY_NUM_RETRIES, 0);
+                                    GeneralErrorException lastException = null;
+                                    acquireWifiLock(SmsSyncService.this);
+                                    wifiLocked = true;
+                                    Account account = getAccount(SmsSyncService.this);
 
-                                ImapStore imapStore = validateCertificate(account);
-                                validateFolder(imapStore);
+                                    ImapStore imapStore = validateCertificate(account);
+                                    Folder folder = openFolder(imapStore);
                             
-                                // Try sync numRetries + 1 times.
-                                while (numRetries >= 0) {
-                                    try {
-                                        backup(imapStore);
-                                        break;
-                                    } catch (GeneralErrorException e) {
-                                        Log.w(Consts.TAG, e.getMessage());
-                                        Log.i(Consts.TAG, "Retrying sync in 2 seconds. ("
-                                                + (numRetries - 1) + ")");
-                                        lastException = e;
-                                        if (numRetries > 1) {
-                                            try {
-                                                Thread.sleep(2000);
-                                            } catch (InterruptedException e1) { /* ignore */
+                                    // Try sync numRetries + 1 times.
+                                    while (numRetries >= 0) {
+                                        try {
+                                            backup(imapStore, folder);
+                                            break;
+                                        } catch (GeneralErrorException e) {
+                                            Log.w(Consts.TAG, e.getMessage());
+                                            Log.i(Consts.TAG, "Retrying sync in 2 seconds. ("
+                                                    + (numRetries - 1) + ")");
+                                            lastException = e;
+                                            if (numRetries > 0) {
+                                                mMetrics.addRetry();
+                                            }
+                                            if (numRetries > 1) {
+                                                try {
+                                                    Thread.sleep(2000);
+                                                } catch (InterruptedException e1) { /* ignore */
+                                                }
                                             }
                                         }
+                                        numRetries--;
+                                    }
+                                    if (lastException != null) {
+                                        throw lastException;
                                     }
-                                    numRetries--;
-                                }
-                                if (lastException != null) {
-                                    throw lastException;
                                 }
                             }
                         } catch (GeneralErrorException e) {
@@ -214,9 +275,13 @@ public class SmsSyncService extends Service {
                             sMissingCertificateChain = mce.getCertificateChain();
                             updateState(SmsSyncState.MISSING_CERTIFICATE);
                         } finally {
+                            finishMetrics();
                             stopSelf();
                             Alarms.scheduleRegularSync(SmsSyncService.this);
                             sIsRunning = false;
+                            if (wifiLocked) {
+                                releaseWifiLock(SmsSyncService.this);
+                            }
                             releaseWakeLock(SmsSyncService.this);
                         }
                     }
@@ -240,18 +305,30 @@ public class SmsSyncService extends Service {
      * <li>{@link SmsSyncState#CALC}: The list of messages requiring a sync is
      * determined. This is done by querying the SMS content provider for
      * messages with
-     * <code>ID > {@link #getMaxSyncedDate()} AND type != {@link #MESSAGE_TYPE_DRAFT}</code>
-     * .</li>
+     * a <code>(date, _id)</code> position after the last
+     * {@link CheckpointJournal} checkpoint that are no drafts.</li>
      * <li>{@link SmsSyncState#LOGIN}: An SSL connection is opened to the Gmail IMAP
      * server using the user provided credentials.</li>
      * <li>{@link SmsSyncState#SYNC}: The messages determined in step #1 are
-     * sent to the server, possibly in chunks of a maximum of
-     * {@link #MAX_MSG_PER_REQUEST} per request. After each successful sync
-     * request, the maximum ID of synced messages is updated such that future
-     * syncs will skip.</li>
+     * converted by a {@link MessageProducer} and sent to the server in chunks of a maximum of
+     * {@link PrefStore#getMaxMsgPerRequest(Context)} per request. After each
+     * successful sync request, the position of the last synced message is
+     * appended to the {@link CheckpointJournal} such that future syncs will
+     * skip it.</li>
+     * <li>If {@link PrefStore#isBulkImport(Context) bulk import} is enabled,
+     * the whole history is uploaded in chunks of
+     * {@link #BULK_IMPORT_CHUNK_SPAN} while the folder stays open. A failed
+     * chunk is continued from the last checkpoint after an exponential
+     * backoff. Reopening the folder reuses the connection if it is still
+     * usable, otherwise a new connection is opened and logs in again.</li>
      * <li>{@link SmsSyncState#CANCELED}: If {@link #cancel()} was called during
      * backup, the backup will stop at the next possible occasion.</li>
      * </ol>
+     * <p>
+     * Syncs started by an alarm first check locally whether there are any
+     * messages to back up (see {@link #hasItemsToSync()}) and end before
+     * taking the wake lock and connecting to the server if there are none.
+     * </p>
      * 
      * <h2>Preconditions</h2>
      * <p>
@@ -262,7 +339,7 @@ public class SmsSyncService extends Service {
      * @throws GeneralErrorException Thrown when there there was an error during
      *             sync.
      */
-    private void backup(ImapStore imapStore) throws GeneralErrorException,
+    private void backup(ImapStore imapStore, Folder folder) throws GeneralErrorException,
             AuthenticationErrorException {
         Log.i(Consts.TAG, "Starting backup...");
         sCanceled = false;
@@ -271,46 +348,156 @@ public class SmsSyncService extends Service {
             throw new GeneralErrorException(this, R.string.err_sync_requires_login_info, null);
         }
 
+        CheckpointJournal journal = openCheckpointJournal();
+        try {
+            backup(imapStore, folder, journal);
+        } finally {
+            // The preferences only get the last checkpoint once per run, the
+            // journal is the authoritative source.
+            if (!journal.isEmpty()
+                    && (PrefStore.isFirstSync(this)
+                            || PrefStore.getMaxSyncedDate(this) != journal.getDate())) {
+                PrefStore.setMaxSyncedDate(this, journal.getDate());
+                Log.d(Consts.TAG, "Max synced date set to: " + journal.getDate());
+            }
+            journal.close();
+        }
+    }
 
+    private void backup(ImapStore imapStore, Folder folder, CheckpointJournal journal)
+            throws GeneralErrorException, AuthenticationErrorException {
         updateState(SmsSyncState.CALC);
 
         sItemsToSync = 0;
         sCurrentSyncedItems = 0;
-        
-        Cursor items = getItemsToSync();
-        int maxItemsPerSync = PrefStore.getMaxItemsPerSync(this);
-        sItemsToSync = Math.min(items.getCount(), maxItemsPerSync);
+
+        // In bulk import mode the whole history is uploaded in date range
+        // chunks without a limit.
+        boolean bulkImport = PrefStore.isBulkImport(this);
+        int maxItemsPerSync = bulkImport ? Integer.MAX_VALUE : PrefStore.getMaxItemsPerSync(this);
+        long calcStart = SystemClock.elapsedRealtime();
+        sItemsToSync = countItemsToSync(journal, maxItemsPerSync);
+        mMetrics.addPhaseTime(Phase.CALC, SystemClock.elapsedRealtime() - calcStart);
         Log.d(Consts.TAG, "Total messages to backup: " + sItemsToSync);
         if (sItemsToSync == 0) {
-            PrefStore.setLastSync(this);
-            if (PrefStore.isFirstSync(this)) {
-                // If this is the first backup we need to write something to PREF_MAX_SYNCED_DATE
-                // such that we know that we've performed a backup before.
-                PrefStore.setMaxSyncedDate(this, PrefStore.DEFAULT_MAX_SYNCED_DATE);
-            }
-            updateState(SmsSyncState.IDLE);
-            Log.d(Consts.TAG, "Nothing to do.");
+            finishEmptySync();
             return;
         }
 
         updateState(SmsSyncState.LOGIN);
 
-        Folder folder;
-        boolean folderExists;
-        String label = PrefStore.getImapFolder(this);
-        try {
-            folder = imapStore.getFolder(label);
-            folderExists = folder.exists();
-            if (!folderExists) {
-                Log.i(Consts.TAG, "Label '" + label + "' does not exist yet. Creating.");
-                folder.create(FolderType.HOLDS_MESSAGES);
+        String username = PrefStore.getLoginUsername(this);
+        CursorToMessage converter = new CursorToMessage(this, username,
+                ContactCache.open(getApplication()));
+
+        // The folder stays open across chunks. After an error only the failed
+        // chunk is restarted from the last checkpoint. A connection that broke
+        // isn't returned to the pool, so reopening the folder logs in again.
+        int chunk = 0;
+        int failures = 0;
+        boolean folderRecreated = false;
+        while (!sCanceled && sCurrentSyncedItems < maxItemsPerSync) {
+            boolean retryChunk = false;
+            long chunkEnd = Long.MAX_VALUE;
+            if (bulkImport) {
+                long firstDate = getFirstPendingDate(journal);
+                if (firstDate == PrefStore.DEFAULT_MAX_SYNCED_DATE) {
+                    break;
+                }
+                chunkEnd = firstDate + BULK_IMPORT_CHUNK_SPAN;
+            }
+
+            Cursor items = getItemsToSync(journal, chunkEnd,
+                    maxItemsPerSync - sCurrentSyncedItems);
+            int syncedBefore = sCurrentSyncedItems;
+            long start = SystemClock.elapsedRealtime();
+            try {
+                if (!folder.isOpen()) {
+                    Log.i(Consts.TAG, "Reconnecting to continue backup.");
+                    folder.open(Folder.OPEN_MODE_RW);
+                }
+                long bytes = backupChunk(folder, items, converter, journal);
+                failures = 0;
+                chunk++;
+                if (bulkImport) {
+                    logChunkThroughput(chunk, sCurrentSyncedItems - syncedBefore, bytes,
+                            SystemClock.elapsedRealtime() - start);
+                }
+            } catch (FolderNotFoundException e) {
+                // The label was removed on the server since it was verified.
+                if (folderRecreated) {
+                    throw new GeneralErrorException(this, R.string.err_communication_error, e);
+                }
+                folderRecreated = true;
+                mMetrics.addRetry();
+                Log.i(Consts.TAG, "Label '" + PrefStore.getImapFolder(this)
+                        + "' is gone, creating it again.", e);
+                PrefStore.setImapFolderVerified(this, false);
+                folder.close();
+                folder = openFolder(imapStore);
+                retryChunk = true;
+            } catch (MessagingException e) {
+                if (!bulkImport || failures == BULK_IMPORT_MAX_RETRIES) {
+                    throw new GeneralErrorException(this, R.string.err_communication_error, e);
+                }
+                long delay = Math.min(BULK_IMPORT_INITIAL_BACKOFF << failures,
+                        BULK_IMPORT_MAX_BACKOFF);
+                failures++;
+                mMetrics.addRetry();
+                Log.w(Consts.TAG, "Bulk import interrupted, retrying in " + delay + " ms. ("
+                        + failures + "/" + BULK_IMPORT_MAX_RETRIES + ")", e);
+                folder.close();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    throw new GeneralErrorException(this, R.string.err_communication_error, e);
+                }
+            } finally {
+                items.close();
+            }
+
+            if (!bulkImport && !retryChunk) {
+                break;
             }
-            folder.open(Folder.OPEN_MODE_RW);
-        } catch (MessagingException e) {
-            throw new AuthenticationErrorException(e);
         }
-        String username = PrefStore.getLoginUsername(this);
-        CursorToMessage converter = new CursorToMessage(this, username);
+
+        if (!sCanceled) {
+            Log.i(Consts.TAG, "Sync done: " + sCurrentSyncedItems + " items uploaded.");
+            Log.d(Consts.TAG, "People cache: " + converter.getPeopleCacheHits()
+                    + " hits, " + converter.getPersistentCacheHits() + " persistent hits, "
+                    + converter.getPeopleCacheMisses() + " misses.");
+            PrefStore.setLastSync(SmsSyncService.this);
+            updateState(SmsSyncState.IDLE);
+            folder.close();
+            CompressionStatistics compression = imapStore.getCompressionStatistics();
+            if (compression.getPlainBytesWritten() > 0) {
+                Log.d(Consts.TAG, "Compression: " + compression);
+            }
+            Log.d(Consts.TAG, "Connection pool: " + imapStore.getConnectionPoolStatistics());
+            HandshakeStatistics handshakes = SSLContextCache.getHandshakeStatistics();
+            if (handshakes.getFullHandshakes() + handshakes.getResumedHandshakes() > 0) {
+                // Accumulated over all syncs since the process was started
+                Log.d(Consts.TAG, "TLS: " + handshakes);
+            }
+        }
+    }
+
+    /**
+     * Uploads all messages of the given cursor and checkpoints each
+     * successfully uploaded request.
+     *
+     * @return the number of bytes uploaded.
+     */
+    private long backupChunk(Folder folder, Cursor items, CursorToMessage converter,
+            CheckpointJournal journal) throws MessagingException, GeneralErrorException {
+        long bytes = 0;
+        // Messages are converted on a separate thread while the previous batch
+        // is being uploaded.
+        MessageProducer producer = new MessageProducer(items, converter,
+                PrefStore.getMaxMsgPerRequest(this));
+        int cacheHits = converter.getPeopleCacheHits();
+        int cacheMisses = converter.getPeopleCacheMisses();
+        producer.start();
         try {
             while (true) {
                 // Cancel sync if requested by the user.
@@ -320,42 +507,130 @@ public class SmsSyncService extends Service {
                     break;
                 }
                 updateState(SmsSyncState.SYNC);
-                ConversionResult result = converter.cursorToMessageArray(items,
-                        MAX_MSG_PER_REQUEST);
+                ConversionResult result = producer.take();
                 List<Message> messages = result.messageList;
-                // Stop the sync if all items where uploaded or if the maximum number
-                // of messages per sync was uploaded.
-                if (messages.size() == 0
-                        || sCurrentSyncedItems >= maxItemsPerSync) {
-                    Log.i(Consts.TAG, "Sync done: " + sCurrentSyncedItems + " items uploaded.");
-                    PrefStore.setLastSync(SmsSyncService.this);
-                    updateState(SmsSyncState.IDLE);
-                    folder.close();
+                // Stop if all items of the cursor were uploaded.
+                if (messages.size() == 0) {
                     break;
                 }
 
                 Log.d(Consts.TAG, "Sending " + messages.size() + " messages to server.");
-                folder.appendMessages(messages.toArray(new Message[messages.size()]));
-                sCurrentSyncedItems += messages.size();
-                updateState(SmsSyncState.SYNC);
-                updateMaxSyncedDate(result.maxDate);
+                // The checkpoint only moves forward over messages the server
+                // acknowledged; the rest of a failed batch is sent again.
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    folder.appendMessages(messages.toArray(new Message[messages.size()]));
+                } catch (AppendFailedException e) {
+                    int count = e.getAppendedCount();
+                    Log.w(Consts.TAG, count + " of " + messages.size()
+                            + " messages were stored before the append failed.");
+                    bytes += appended(journal, result, count,
+                            SystemClock.elapsedRealtime() - start);
+                    throw e.getFailure();
+                }
+                bytes += appended(journal, result, messages.size(),
+                        SystemClock.elapsedRealtime() - start);
                 result = null;
                 messages = null;
             }
-        } catch (MessagingException e) {
-            throw new GeneralErrorException(this, R.string.err_communication_error, e);
         } finally {
-            items.close();
+            producer.shutdown();
+            mMetrics.addPhaseTime(Phase.CONVERSION, producer.getConversionMillis());
+            mMetrics.addPhaseTime(Phase.SERIALIZATION, producer.getSerializationMillis());
+            mMetrics.addContactCacheStatistics(converter.getPeopleCacheHits() - cacheHits,
+                    converter.getPeopleCacheMisses() - cacheMisses);
+        }
+        return bytes;
+    }
+
+    /**
+     * Records that the server stored the first <code>count</code> messages of
+     * the given batch and moves the checkpoint past them.
+     *
+     * @return the number of bytes of these messages.
+     */
+    private long appended(CheckpointJournal journal, ConversionResult result, int count,
+            long millis) {
+        long bytes = 0;
+        long maxDate = PrefStore.DEFAULT_MAX_SYNCED_DATE;
+        long maxId = -1;
+        for (int i = 0; i < count; i++) {
+            bytes += result.messageList.get(i).calculateSize();
+            long date = result.dates[i];
+            long id = result.ids[i];
+            if (date > maxDate || (date == maxDate && id > maxId)) {
+                maxDate = date;
+                maxId = id;
+            }
+        }
+        mMetrics.addAppend(count, bytes, millis);
+        sCurrentSyncedItems += count;
+        updateState(SmsSyncState.SYNC);
+        checkpoint(journal, maxDate, maxId);
+        return bytes;
+    }
+
+    /**
+     * Returns whether there are messages to back up. Only the local SMS
+     * content provider and the checkpoint journal are queried, so this is
+     * cheap enough to be checked before connecting to the server.
+     */
+    private boolean hasItemsToSync() throws GeneralErrorException {
+        updateState(SmsSyncState.CALC);
+        long start = SystemClock.elapsedRealtime();
+        CheckpointJournal journal = openCheckpointJournal();
+        try {
+            return getFirstPendingDate(journal) != PrefStore.DEFAULT_MAX_SYNCED_DATE;
+        } finally {
+            journal.close();
+            mMetrics.addPhaseTime(Phase.CALC, SystemClock.elapsedRealtime() - start);
         }
     }
 
+    /**
+     * Ends a backup that found no messages to upload.
+     */
+    private void finishEmptySync() {
+        sItemsToSync = 0;
+        sCurrentSyncedItems = 0;
+        PrefStore.setLastSync(this);
+        if (PrefStore.isFirstSync(this)) {
+            // If this is the first backup we need to write something to PREF_MAX_SYNCED_DATE
+            // such that we know that we've performed a backup before.
+            PrefStore.setMaxSyncedDate(this, PrefStore.DEFAULT_MAX_SYNCED_DATE);
+        }
+        updateState(SmsSyncState.IDLE);
+        Log.d(Consts.TAG, "Nothing to do.");
+    }
+
+    private static void logChunkThroughput(int chunk, int count, long bytes, long millis) {
+        long elapsed = Math.max(millis, 1);
+        Log.i(Consts.TAG, String.format(Locale.US, "Chunk %d: %d messages, %d KiB in %d ms "
+                + "(%.1f messages/s, %.1f KiB/s)", chunk, count, bytes / 1024, millis,
+                count * 1000.0 / elapsed, bytes * 1000.0 / 1024 / elapsed));
+    }
+
     private ImapStore validateCertificate(Account account) throws AuthenticationErrorException,
             MissingCertificateException {
         LocalKeyStore.setKeyStoreLocation(getDir("KeyStore", MODE_PRIVATE).toString());
+        // Large IMAP literals and message bodies are spooled to the cache directory.
+        BinaryTempFileBody.setTempDirectory(getCacheDir());
+        if (K9.app == null) {
+            // Used by the IMAP code e.g. to look up the network type.
+            K9.app = getApplication();
+        }
+        // Applies to the connections opened from now on.
+        ImapStore.setUseNioTransport(PrefStore.isNioTransport(this));
+        ImapStore.setSocketBufferSize(PrefStore.getSocketBufferSize(this));
+        int streamBufferSize = PrefStore.getStreamBufferSize(this);
+        ImapStore.setStreamBufferSizes(streamBufferSize, 2 * streamBufferSize);
         ImapStore imapStore = null;
         try {
             imapStore = new ImapStore(account);
-            imapStore.getPersonalNamespaces(true);
+            mImapStore = imapStore;
+            // Checks the certificate and the credentials. The connection is
+            // reused by the backup.
+            imapStore.checkConnection();
         } catch (MessagingException e) {
             if (e.getCause() instanceof CertificateValidationException) {
                 CertificateValidationException cve = (CertificateValidationException)e.getCause();
@@ -368,37 +643,104 @@ public class SmsSyncService extends Service {
         return imapStore;
     }
 
-    private void validateFolder(ImapStore imapStore) throws AuthenticationErrorException {
-        Folder folder;
-        boolean folderExists;
+    /**
+     * Returns the backup folder, selected for the upload. The folder is only
+     * looked up (and created if necessary) if it wasn't verified by an earlier
+     * backup or if the server rejected it since.
+     */
+    private Folder openFolder(ImapStore imapStore) throws AuthenticationErrorException {
         String label = PrefStore.getImapFolder(this);
+        long start = SystemClock.elapsedRealtime();
         try {
-            folder = imapStore.getFolder(label);
-            folderExists = folder.exists();
-            if (!folderExists) {
-                Log.i(Consts.TAG, "Label '" + label + "' does not exist yet. Creating.");
-                folder.create(FolderType.HOLDS_MESSAGES);
+            Folder folder = imapStore.getFolder(label);
+            boolean verified = PrefStore.isImapFolderVerified(this);
+            if (!verified) {
+                createFolderIfMissing(folder);
             }
-            folder.open(Folder.OPEN_MODE_RW);
+            try {
+                folder.open(Folder.OPEN_MODE_RW);
+            } catch (MessagingException e) {
+                if (!verified || !e.isPermanentFailure()) {
+                    throw e;
+                }
+                // The server refused to select the folder, it might have been
+                // removed since it was verified.
+                Log.i(Consts.TAG, "Unable to select label '" + label + "', verifying it.", e);
+                PrefStore.setImapFolderVerified(this, false);
+                createFolderIfMissing(folder);
+                folder.open(Folder.OPEN_MODE_RW);
+            }
+            PrefStore.setImapFolderVerified(this, true);
+            return folder;
         } catch (MessagingException e) {
             throw new AuthenticationErrorException(e);
+        } finally {
+            mMetrics.addPhaseTime(Phase.FOLDER, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    private static void createFolderIfMissing(Folder folder) throws MessagingException {
+        if (!folder.exists()) {
+            Log.i(Consts.TAG, "Label '" + folder.getName() + "' does not exist yet. Creating.");
+            folder.create(FolderType.HOLDS_MESSAGES);
         }
     }
 
     /**
      * Returns a cursor of SMS messages that have not yet been synced with the
-     * server. This includes all messages with
-     * <code>date &lt; {@link #getMaxSyncedDate()}</code> which are no drafs.
+     * server. This includes all messages ordered after the last checkpoint of
+     * the given journal by <code>date, _id</code> which are no drafts and
+     * have a date before <code>endDate</code>.
      */
-    private Cursor getItemsToSync() {
+    private Cursor getItemsToSync(CheckpointJournal journal, long endDate, int limit) {
+        return queryItemsToSync(journal, endDate, CursorToMessage.SMS_PROJECTION, limit);
+    }
+
+    /**
+     * Returns the number of messages returned by
+     * {@link #getItemsToSync(CheckpointJournal, long, int)} without an end
+     * date.
+     */
+    private int countItemsToSync(CheckpointJournal journal, int limit) {
+        Cursor cursor = queryItemsToSync(journal, Long.MAX_VALUE, new String[] {
+            SmsConsts.ID
+        }, limit);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the date of the first message that has not yet been synced or
+     * {@link PrefStore#DEFAULT_MAX_SYNCED_DATE} if there is none.
+     */
+    private long getFirstPendingDate(CheckpointJournal journal) {
+        Cursor cursor = queryItemsToSync(journal, Long.MAX_VALUE, new String[] {
+            SmsConsts.DATE
+        }, 1);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : PrefStore.DEFAULT_MAX_SYNCED_DATE;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor queryItemsToSync(CheckpointJournal journal, long endDate, String[] projection,
+            int limit) {
         ContentResolver r = getContentResolver();
-        String selection = String.format("%s > ? AND %s <> ?",
-                SmsConsts.DATE, SmsConsts.TYPE);
+        String selection = String.format(
+                "(%1$s > ? OR (%1$s = ? AND %2$s > ?)) AND %1$s < ? AND %3$s <> ?",
+                SmsConsts.DATE, SmsConsts.ID, SmsConsts.TYPE);
+        String date = String.valueOf(journal.getDate());
         String[] selectionArgs = new String[] {
-                String.valueOf(getMaxSyncedDate()), String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT)
+                date, date, String.valueOf(journal.getId()), String.valueOf(endDate),
+                String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT)
         };
-        String sortOrder = SmsConsts.DATE + " LIMIT " + PrefStore.getMaxItemsPerSync(this);
-        return r.query(Uri.parse("content://sms"), null, selection, selectionArgs, sortOrder);
+        String sortOrder = SmsConsts.DATE + ", " + SmsConsts.ID + " LIMIT " + limit;
+        return r.query(Uri.parse("content://sms"), projection, selection,
+                selectionArgs, sortOrder);
     }
 
     /**
@@ -432,23 +774,80 @@ public class SmsSyncService extends Service {
     }
 
     /**
-     * Returns the largest date of all messages that have successfully been synced
-     * with the server.
+     * Opens the checkpoint journal. If the journal doesn't exist yet, it is
+     * started with the max synced date stored in the preferences by earlier
+     * versions.
      */
-    private long getMaxSyncedDate() {
-        return PrefStore.getMaxSyncedDate(this);
+    private CheckpointJournal openCheckpointJournal() throws GeneralErrorException {
+        try {
+            CheckpointJournal journal = CheckpointJournal.open(this);
+            if (journal.isEmpty() && !PrefStore.isFirstSync(this)) {
+                journal.append(PrefStore.getMaxSyncedDate(this), CheckpointJournal.NO_ID);
+            }
+            return journal;
+        } catch (IOException e) {
+            throw new GeneralErrorException(this, R.string.err_checkpoint_error, e);
+        }
     }
 
     /**
-     * Persists the provided ID so it can later on be retrieved using
-     * {@link #getMaxSyncedDate()}. This should be called when after each
-     * successful sync request to a server.
-     * 
-     * @param maxSyncedId
+     * Appends the position of the last message acknowledged by the server to
+     * the journal. This should be called after each successful sync request
+     * to a server.
+     */
+    private void checkpoint(CheckpointJournal journal, long date, long id)
+            throws GeneralErrorException {
+        try {
+            journal.append(date, id);
+        } catch (IOException e) {
+            throw new GeneralErrorException(this, R.string.err_checkpoint_error, e);
+        }
+        if (PrefStore.isFirstSync(this)) {
+            // Make sure the next run knows that a backup happened before,
+            // even if this one doesn't finish.
+            PrefStore.setMaxSyncedDate(this, date);
+        }
+    }
+
+    /**
+     * Marks all current messages as synced.
      */
-    private void updateMaxSyncedDate(long maxSyncedDate) {
-        PrefStore.setMaxSyncedDate(this, maxSyncedDate);
-        Log.d(Consts.TAG, "Max synced date set to: " + maxSyncedDate);
+    private void skipMessages() throws GeneralErrorException {
+        long maxItemDate = getMaxItemDate();
+        CheckpointJournal journal = openCheckpointJournal();
+        try {
+            checkpoint(journal, maxItemDate, CheckpointJournal.NO_ID);
+        } finally {
+            journal.close();
+        }
+        PrefStore.setMaxSyncedDate(this, maxItemDate);
+        Log.d(Consts.TAG, "Max synced date set to: " + maxItemDate);
+    }
+
+    /**
+     * Completes the metrics of the backup that just ended, logs them and
+     * notifies the {@link SyncMetricsListener}. Does nothing if no backup was
+     * started.
+     */
+    private void finishMetrics() {
+        SyncMetrics metrics = mMetrics;
+        if (metrics == null) {
+            return;
+        }
+        mMetrics = null;
+        if (mImapStore != null) {
+            ConnectionStatistics connections = mImapStore.getConnectionStatistics();
+            metrics.addConnections(connections.getConnections(),
+                    connections.getConnectMillis(), connections.getLoginMillis());
+            mImapStore = null;
+        }
+        metrics.finish(sState);
+        Log.i(Consts.TAG, "Sync metrics: " + metrics);
+        SyncMetricsLog.append(this, metrics);
+        sLastSyncMetrics = metrics;
+        if (sSyncMetricsListener != null) {
+            sSyncMetricsListener.syncFinished(metrics);
+        }
     }
 
     // Actions available from other classes.
@@ -467,6 +866,14 @@ public class SmsSyncService extends Service {
                         URLEncoder
                         .encode(username), URLEncoder.encode(password)
                         .replace("+", "%20")));
+
+        String compression = PrefStore.getCompression(context);
+        boolean compressAlways = PrefStore.COMPRESSION_ALWAYS.equals(compression);
+        account.setCompression(Account.TYPE_MOBILE,
+                compressAlways || PrefStore.COMPRESSION_MOBILE.equals(compression));
+        account.setCompression(Account.TYPE_WIFI, compressAlways);
+        account.setCompression(Account.TYPE_OTHER, compressAlways);
+        account.setDiscoveryCache(new ImapDiscoveryPrefs(context));
         return account;
     }
 
@@ -557,6 +964,41 @@ public class SmsSyncService extends Service {
         sStateChangeListener = null;
     }
 
+    /**
+     * Returns the metrics of the last finished backup of this process or
+     * <code>null</code> if there was none. Earlier runs can be read with
+     * {@link SyncMetricsLog#read(Context)}.
+     */
+    static SyncMetrics getLastSyncMetrics() {
+        return sLastSyncMetrics;
+    }
+
+    /**
+     * Registers a {@link SyncMetricsListener} that is notified at the end of
+     * each backup. Note that at most one listener can be registered and you
+     * need to call {@link #unsetSyncMetricsListener()} in between calls to
+     * this method.
+     * 
+     * @see #unsetSyncMetricsListener()
+     */
+    static void setSyncMetricsListener(SyncMetricsListener listener) {
+        if (sSyncMetricsListener != null) {
+            throw new IllegalStateException("setSyncMetricsListener(...) called when there"
+                    + " was still some other listener "
+                    + "registered. Use unsetSyncMetricsListener() first.");
+        }
+        sSyncMetricsListener = listener;
+    }
+
+    /**
+     * Unregisters the currently registered {@link SyncMetricsListener}.
+     * 
+     * @see #setSyncMetricsListener(SyncMetricsListener)
+     */
+    static void unsetSyncMetricsListener() {
+        sSyncMetricsListener = null;
+    }
+
     /**
      * Internal method that needs to be called whenever the state of the service
      * changes.
@@ -582,6 +1024,19 @@ public class SmsSyncService extends Service {
         public void stateChanged(SmsSyncState oldState, SmsSyncState newState);
     }
 
+    /**
+     * A listener interface that provides a callback with the metrics of each
+     * finished backup. It is called on the backup thread.
+     * 
+     * @see SmsSyncService#setSyncMetricsListener(SyncMetricsListener)
+     */
+    public interface SyncMetricsListener {
+        /**
+         * Called when a backup ended, successfully or not.
+         */
+        public void syncFinished(SyncMetrics metrics);
+    }
+
     /**
      * Exception indicating an error while synchronizing.
      */
@@ -0,0 +1,453 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tv.studer.smssync;
+
+import java.util.Locale;
+
+import tv.studer.smssync.SmsSyncService.SmsSyncState;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Timings and counters of a single backup run.
+ * <p>
+ * The run is split into {@link Phase phases}; the time of each phase is
+ * summed up over the whole run, including reconnects and retried chunks. The
+ * upload latency is kept as a histogram of batches: each batch of messages
+ * appended together is counted once, in the bucket of its average time per
+ * message. The acknowledgements of single messages aren't timed. Bytes sent
+ * and received are the traffic of the app's UID while the backup was running,
+ * or -1 if the platform doesn't count it.
+ * </p>
+ * <p>
+ * {@link #toRecord()} and {@link #fromRecord(String)} convert the metrics to
+ * and from a single line of text, see {@link SyncMetricsLog}.
+ * </p>
+ */
+public class SyncMetrics {
+
+    public enum Phase {
+        /** Counting the messages to back up. */
+        CALC,
+        /** Host lookup, TCP connection and SSL/TLS handshake. */
+        CONNECT,
+        /** Greeting, STARTTLS, authentication and discovery. */
+        LOGIN,
+        /** Verifying (and creating) and selecting the backup folder. */
+        FOLDER,
+        /** Converting SMS to MIME messages, including contact lookups. */
+        CONVERSION,
+        /** Serializing the MIME messages for the upload. */
+        SERIALIZATION,
+        /** Sending the messages to the server until they are acknowledged. */
+        APPEND
+    }
+
+    /**
+     * Upper bounds in milliseconds of the buckets of the batch latency
+     * histogram. A last bucket counts all slower batches.
+     */
+    public static final long[] BATCH_LATENCY_BUCKETS = {
+            10, 25, 50, 100, 250, 500, 1000, 2500, 5000
+    };
+
+    /** Version of the format written by {@link #toRecord()}. */
+    private static final String RECORD_VERSION = "3";
+
+    /** Number of fields of a record of the current version. */
+    private static final int RECORD_FIELDS = 15;
+
+    private long mStartTime;
+
+    private long mDuration;
+
+    private SmsSyncState mResult;
+
+    private final long[] mPhaseMillis = new long[Phase.values().length];
+
+    private final int[] mBatchLatencies = new int[BATCH_LATENCY_BUCKETS.length + 1];
+
+    private int mBatches;
+
+    private int mMessages;
+
+    private long mMessageBytes;
+
+    private int mRetries;
+
+    private long mConnections;
+
+    private int mContactCacheHits;
+
+    private int mContactCacheMisses;
+
+    private boolean mLocalOnly;
+
+    private long mBytesSent = -1;
+
+    private long mBytesReceived = -1;
+
+    private long mStartTxBytes = -1;
+
+    private long mStartRxBytes = -1;
+
+    /**
+     * Starts the run: remembers the start time and the current traffic
+     * counters.
+     */
+    void start() {
+        mStartTime = System.currentTimeMillis();
+        if (isTrafficSupported()) {
+            mStartTxBytes = Traffic.getTxBytes();
+            mStartRxBytes = Traffic.getRxBytes();
+        }
+    }
+
+    /**
+     * Ends the run with the given state, e.g. {@link SmsSyncState#IDLE} if
+     * the backup was successful.
+     */
+    void finish(SmsSyncState result) {
+        mDuration = System.currentTimeMillis() - mStartTime;
+        mResult = result;
+        if (mStartTxBytes >= 0 && mStartRxBytes >= 0) {
+            long tx = Traffic.getTxBytes();
+            long rx = Traffic.getRxBytes();
+            if (tx >= 0 && rx >= 0) {
+                mBytesSent = tx - mStartTxBytes;
+                mBytesReceived = rx - mStartRxBytes;
+            }
+        }
+    }
+
+    void addPhaseTime(Phase phase, long millis) {
+        mPhaseMillis[phase.ordinal()] += millis;
+    }
+
+    /**
+     * Records a batch of <code>count</code> appended messages with a total
+     * size of <code>bytes</code> that took <code>millis</code> milliseconds
+     * until the server acknowledged all of them.
+     */
+    void addAppend(int count, long bytes, long millis) {
+        if (count == 0) {
+            return;
+        }
+        addPhaseTime(Phase.APPEND, millis);
+        mBatchLatencies[getBucket(millis / count)]++;
+        mBatches++;
+        mMessages += count;
+        mMessageBytes += bytes;
+    }
+
+    /**
+     * Marks the run as ended by the local check for pending messages, without
+     * connecting to the server.
+     */
+    void setLocalOnly() {
+        mLocalOnly = true;
+    }
+
+    void addRetry() {
+        mRetries++;
+    }
+
+    void addConnections(long connections, long connectMillis, long loginMillis) {
+        mConnections += connections;
+        addPhaseTime(Phase.CONNECT, connectMillis);
+        addPhaseTime(Phase.LOGIN, loginMillis);
+    }
+
+    void addContactCacheStatistics(int hits, int misses) {
+        mContactCacheHits += hits;
+        mContactCacheMisses += misses;
+    }
+
+    /** Returns the start of the run in milliseconds since the epoch. */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /** Returns the wall clock duration of the run in milliseconds. */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    /** Returns the state the run ended in. */
+    public SmsSyncState getResult() {
+        return mResult;
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        return mPhaseMillis[phase.ordinal()];
+    }
+
+    /**
+     * Returns whether the run found nothing to back up before connecting to
+     * the server, so neither the network nor a wake lock was used.
+     */
+    public boolean isLocalOnly() {
+        return mLocalOnly;
+    }
+
+    /** Returns the number of messages acknowledged by the server. */
+    public int getMessages() {
+        return mMessages;
+    }
+
+    /** Returns the size of the messages acknowledged by the server. */
+    public long getMessageBytes() {
+        return mMessageBytes;
+    }
+
+    /** Returns the number of retried syncs, chunks and folder lookups. */
+    public int getRetries() {
+        return mRetries;
+    }
+
+    /** Returns the number of IMAP connections opened. */
+    public long getConnections() {
+        return mConnections;
+    }
+
+    public int getContactCacheHits() {
+        return mContactCacheHits;
+    }
+
+    public int getContactCacheMisses() {
+        return mContactCacheMisses;
+    }
+
+    /** Returns the share of contact lookups served from the cache. */
+    public double getContactCacheHitRate() {
+        int lookups = mContactCacheHits + mContactCacheMisses;
+        return (lookups == 0) ? 0 : (double) mContactCacheHits / lookups;
+    }
+
+    /** Returns the number of bytes sent by the app or -1 if unknown. */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /** Returns the number of bytes received by the app or -1 if unknown. */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * Returns the number of batches per bucket of
+     * {@link #BATCH_LATENCY_BUCKETS}, by their average time per message. The
+     * last element counts the batches above the last bound.
+     */
+    public int[] getBatchLatencyHistogram() {
+        return mBatchLatencies.clone();
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket containing the given
+     * percentile (e.g. 0.99) of the average times per message of the batches,
+     * {@link Long#MAX_VALUE} for the last bucket or 0 if no batch was
+     * uploaded.
+     */
+    public long getBatchLatencyPercentile(double fraction) {
+        if (mBatches == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * mBatches);
+        long count = 0;
+        for (int i = 0; i < BATCH_LATENCY_BUCKETS.length; i++) {
+            count += mBatchLatencies[i];
+            if (count >= rank) {
+                return BATCH_LATENCY_BUCKETS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static int getBucket(long millis) {
+        for (int i = 0; i < BATCH_LATENCY_BUCKETS.length; i++) {
+            if (millis <= BATCH_LATENCY_BUCKETS[i]) {
+                return i;
+            }
+        }
+        return BATCH_LATENCY_BUCKETS.length;
+    }
+
+    /**
+     * Returns the metrics as a single line of comma separated values. The
+     * phase times and the histogram buckets are separated by colons.
+     */
+    public String toRecord() {
+        StringBuilder record = new StringBuilder(RECORD_VERSION);
+        record.append(',').append(mStartTime);
+        record.append(',').append(mDuration);
+        record.append(',').append(mResult);
+        record.append(',');
+        appendList(record, mPhaseMillis);
+        record.append(',').append(mMessages);
+        record.append(',').append(mMessageBytes);
+        record.append(',').append(mBytesSent);
+        record.append(',').append(mBytesReceived);
+        record.append(',').append(mRetries);
+        record.append(',').append(mConnections);
+        record.append(',').append(mContactCacheHits);
+        record.append(',').append(mContactCacheMisses);
+        record.append(',');
+        long[] latencies = new long[mBatchLatencies.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = mBatchLatencies[i];
+        }
+        appendList(record, latencies);
+        record.append(',').append(mLocalOnly ? 1 : 0);
+        return record.toString();
+    }
+
+    /**
+     * Parses a line written by {@link #toRecord()}. Records of version 1 lack
+     * the local only flag. The histograms of versions 1 and 2 counted messages
+     * instead of batches and are dropped.
+     *
+     * @return the metrics or <code>null</code> if the line is not a valid
+     *         record.
+     */
+    public static SyncMetrics fromRecord(String line) {
+        String[] fields = line.split(",");
+        boolean valid = (fields.length == RECORD_FIELDS
+                        && (RECORD_VERSION.equals(fields[0]) || "2".equals(fields[0])))
+                || (fields.length == RECORD_FIELDS - 1 && "1".equals(fields[0]));
+        if (!valid) {
+            return null;
+        }
+        try {
+            SyncMetrics metrics = new SyncMetrics();
+            metrics.mStartTime = Long.parseLong(fields[1]);
+            metrics.mDuration = Long.parseLong(fields[2]);
+            metrics.mResult = "null".equals(fields[3]) ? null : SmsSyncState.valueOf(fields[3]);
+            if (!parseList(fields[4], metrics.mPhaseMillis)) {
+                return null;
+            }
+            metrics.mMessages = Integer.parseInt(fields[5]);
+            metrics.mMessageBytes = Long.parseLong(fields[6]);
+            metrics.mBytesSent = Long.parseLong(fields[7]);
+            metrics.mBytesReceived = Long.parseLong(fields[8]);
+            metrics.mRetries = Integer.parseInt(fields[9]);
+            metrics.mConnections = Long.parseLong(fields[10]);
+            metrics.mContactCacheHits = Integer.parseInt(fields[11]);
+            metrics.mContactCacheMisses = Integer.parseInt(fields[12]);
+            long[] latencies = new long[metrics.mBatchLatencies.length];
+            if (!parseList(fields[13], latencies)) {
+                return null;
+            }
+            if (RECORD_VERSION.equals(fields[0])) {
+                for (int i = 0; i < latencies.length; i++) {
+                    metrics.mBatchLatencies[i] = (int) latencies[i];
+                    metrics.mBatches += (int) latencies[i];
+                }
+            }
+            if (fields.length == RECORD_FIELDS) {
+                metrics.mLocalOnly = "1".equals(fields[14]);
+            }
+            return metrics;
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            return null;
+        }
+    }
+
+    private static void appendList(StringBuilder record, long[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                record.append(':');
+            }
+            record.append(values[i]);
+        }
+    }
+
+    private static boolean parseList(String field, long[] values) {
+        String[] parts = field.split(":");
+        if (parts.length != values.length) {
+            return false;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Long.parseLong(parts[i]);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "%s after %d ms: %d messages, %d KiB",
+                mResult, mDuration, mMessages, mMessageBytes / 1024));
+        if (mBytesSent >= 0) {
+            text.append(String.format(Locale.US, " (%d KiB sent, %d KiB received)",
+                    mBytesSent / 1024, mBytesReceived / 1024));
+        }
+        if (mLocalOnly) {
+            text.append("; nothing to do (not connected)");
+        }
+        text.append(';');
+        for (Phase phase : Phase.values()) {
+            text.append(' ').append(phase.name().toLowerCase(Locale.US)).append(' ')
+                    .append(mPhaseMillis[phase.ordinal()]).append(" ms,");
+        }
+        text.append(String.format(Locale.US, " batch average per message p50 %s, p99 %s; "
+                + "%d connections, %d retries, contact cache hit rate %.2f",
+                formatBucket(getBatchLatencyPercentile(0.50)),
+                formatBucket(getBatchLatencyPercentile(0.99)), mConnections, mRetries,
+                getContactCacheHitRate()));
+        return text.toString();
+    }
+
+    private static String formatBucket(long bound) {
+        if (bound == 0) {
+            return "-";
+        }
+        if (bound == Long.MAX_VALUE) {
+            return "> " + BATCH_LATENCY_BUCKETS[BATCH_LATENCY_BUCKETS.length - 1] + " ms";
+        }
+        return "<= " + bound + " ms";
+    }
+
+    /**
+     * Returns whether the platform has {@link TrafficStats} (Android 2.2).
+     */
+    private static boolean isTrafficSupported() {
+        try {
+            return Integer.parseInt(Build.VERSION.SDK) >= 8;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * Traffic counters of the app's UID. Must only be used if
+     * {@link #isTrafficSupported()}, older platforms can't load the class.
+     */
+    private static class Traffic {
+        static long getTxBytes() {
+            long bytes = TrafficStats.getUidTxBytes(Process.myUid());
+            return (bytes == TrafficStats.UNSUPPORTED) ? -1 : bytes;
+        }
+
+        static long getRxBytes() {
+            long bytes = TrafficStats.getUidRxBytes(Process.myUid());
+            return (bytes == TrafficStats.UNSUPPORTED) ? -1 : bytes;
+        }
+    }
+}
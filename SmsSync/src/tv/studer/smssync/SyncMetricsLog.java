@@ -0,0 +1,133 @@
+/* Copyright (c) 2009 Christoph Studer <chstuder@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package tv.studer.smssync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Keeps the {@link SyncMetrics} of the last {@link #MAX_RUNS} backups in a
+ * text file, one {@link SyncMetrics#toRecord() record} per line with the
+ * oldest run first.
+ * <p>
+ * The file is replaced as a whole by writing a new file and renaming it over
+ * the old one, so a crash leaves either the old or the new version.
+ * </p>
+ */
+class SyncMetricsLog {
+    private static final String FILE_NAME = "sync_metrics.log";
+
+    /** Number of runs kept in the log. */
+    static final int MAX_RUNS = 50;
+
+    private SyncMetricsLog() {
+    }
+
+    /**
+     * Returns the metrics of the logged runs, oldest first. Invalid lines are
+     * skipped.
+     */
+    static List<SyncMetrics> read(Context ctx) {
+        List<SyncMetrics> runs = new ArrayList<SyncMetrics>();
+        for (String line : readLines(getFile(ctx))) {
+            SyncMetrics metrics = SyncMetrics.fromRecord(line);
+            if (metrics != null) {
+                runs.add(metrics);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Adds the metrics of a run to the log, dropping the oldest runs if there
+     * are more than {@link #MAX_RUNS}.
+     */
+    static void append(Context ctx, SyncMetrics metrics) {
+        File file = getFile(ctx);
+        List<String> lines = readLines(file);
+        lines.add(metrics.toRecord());
+        List<String> kept = lines.subList(Math.max(lines.size() - MAX_RUNS, 0), lines.size());
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                Writer out = new OutputStreamWriter(fos, "US-ASCII");
+                for (String line : kept) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.flush();
+            } finally {
+                fos.close();
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        } catch (IOException e) {
+            // The metrics are only informational, don't fail the backup.
+            Log.w(Consts.TAG, "Unable to write sync metrics.", e);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the log, e.g. when the sync data is reset.
+     */
+    static void delete(Context ctx) {
+        getFile(ctx).delete();
+    }
+
+    private static File getFile(Context ctx) {
+        return new File(ctx.getFilesDir(), FILE_NAME);
+    }
+
+    private static List<String> readLines(File file) {
+        List<String> lines = new ArrayList<String>();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "US-ASCII"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() > 0) {
+                        lines.add(line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // No backup was logged yet.
+        } catch (IOException e) {
+            Log.w(Consts.TAG, "Unable to read sync metrics.", e);
+        }
+        return lines;
+    }
+}
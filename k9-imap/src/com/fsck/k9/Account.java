@@ -19,6 +19,7 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.store.StorageManager;
 import com.fsck.k9.mail.store.StorageManager.StorageProvider;
+import com.fsck.k9.mail.store.imap.ImapDiscoveryCache;
 import com.fsck.k9.security.LocalKeyStore;
 
 /**
@@ -164,6 +165,8 @@ public class Account implements BaseAccount {
     private boolean goToUnreadMessageSearch;
     private boolean mNotificationShowsUnreadCount;
     private final Map<String, Boolean> compressionMap = new ConcurrentHashMap<String, Boolean>();
+
+    private ImapDiscoveryCache mDiscoveryCache;
     private Searchable searchableFolders;
     private boolean subscribedFoldersOnly;
     private int maximumPolledMessageAge;
@@ -684,6 +687,14 @@ public class Account implements BaseAccount {
         return mDescription;
     }
 
+    public synchronized void setDiscoveryCache(ImapDiscoveryCache discoveryCache) {
+        mDiscoveryCache = discoveryCache;
+    }
+
+    public synchronized ImapDiscoveryCache getDiscoveryCache() {
+        return mDiscoveryCache;
+    }
+
     public synchronized void setCompression(String networkType, boolean useCompression) {
         compressionMap.put(networkType, useCompression);
     }
@@ -0,0 +1,31 @@
+package com.fsck.k9.mail;
+
+/**
+ * Thrown by {@link Folder#appendMessages(Message[])} when appending failed after the server had
+ * already stored some of the messages. The messages are stored in the order they were passed, so
+ * the first {@link #getAppendedCount()} of them mustn't be appended again.
+ */
+public class AppendFailedException extends MessagingException {
+    public static final long serialVersionUID = -1;
+
+    private final int mAppendedCount;
+
+    public AppendFailedException(int appendedCount, MessagingException failure) {
+        super(failure.getMessage(), failure.isPermanentFailure(), failure);
+        mAppendedCount = appendedCount;
+    }
+
+    /**
+     * Returns the number of leading messages the server acknowledged.
+     */
+    public int getAppendedCount() {
+        return mAppendedCount;
+    }
+
+    /**
+     * Returns the exception describing why appending the remaining messages failed.
+     */
+    public MessagingException getFailure() {
+        return (MessagingException) getCause();
+    }
+}
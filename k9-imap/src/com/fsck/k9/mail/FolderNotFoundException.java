@@ -0,0 +1,15 @@
+
+package com.fsck.k9.mail;
+
+/**
+ * Thrown when the server rejected a command because the folder doesn't exist, e.g. an APPEND
+ * answered with {@code NO [TRYCREATE]} (RFC 3501, section 6.3.11). The command may succeed after
+ * the folder has been created.
+ */
+public class FolderNotFoundException extends MessagingException {
+    public static final long serialVersionUID = -1;
+
+    public FolderNotFoundException(String message) {
+        super(message, true);
+    }
+}
@@ -11,6 +11,7 @@ import android.util.Log;
 import com.fsck.k9.K9;
 import com.fsck.k9.mail.filter.CountingOutputStream;
 import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.filter.SpooledOutputStream;
 import com.fsck.k9.mail.store.UnavailableStorageException;
 
 
@@ -254,6 +255,21 @@ public abstract class Message implements Part, CompositeBody {
         return 0;
     }
 
+    /**
+     * Writes the message with CRLF line endings to the given buffer.
+     *
+     * <p>
+     * Use this instead of {@link #calculateSize()} followed by {@link #writeTo(java.io.OutputStream)}
+     * when both the size and the content are needed, e.g. for an IMAP literal. The message is
+     * only serialized once.
+     * </p>
+     */
+    public void serializeTo(SpooledOutputStream out) throws IOException, MessagingException {
+        EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+        writeTo(eolOut);
+        eolOut.flush();
+    }
+
     /**
      * Copy the contents of this object into another {@code Message} object.
      *
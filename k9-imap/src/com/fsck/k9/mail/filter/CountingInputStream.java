@@ -0,0 +1,52 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A filtering InputStream that counts the bytes read through it.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private long mCount;
+
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int d = in.read();
+        if (d != -1) {
+            mCount++;
+        }
+        return d;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        int d = in.read(b, offset, length);
+        if (d > 0) {
+            mCount += d;
+        }
+        return d;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long d = in.skip(n);
+        if (d > 0) {
+            mCount += d;
+        }
+        return d;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
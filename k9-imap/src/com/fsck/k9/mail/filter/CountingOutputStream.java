@@ -4,13 +4,19 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 /**
- * A simple OutputStream that does nothing but count how many bytes are written to it and
- * makes that count available to callers.
+ * A simple OutputStream that counts how many bytes are written to it and makes that count
+ * available to callers. The bytes are discarded unless a stream to pass them on to is given.
  */
 public class CountingOutputStream extends OutputStream {
+    private final OutputStream mOut;
     private long mCount;
 
     public CountingOutputStream() {
+        this(null);
+    }
+
+    public CountingOutputStream(OutputStream out) {
+        mOut = out;
     }
 
     public long getCount() {
@@ -19,16 +25,36 @@ public class CountingOutputStream extends OutputStream {
 
     @Override
     public void write(int oneByte) throws IOException {
+        if (mOut != null) {
+            mOut.write(oneByte);
+        }
         mCount++;
     }
 
     @Override
     public void write(byte b[], int offset, int len) throws IOException {
+        if (mOut != null) {
+            mOut.write(b, offset, len);
+        }
         mCount += len;
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        mCount += b.length;
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mOut != null) {
+            mOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+        }
     }
 }
@@ -0,0 +1,179 @@
+package com.fsck.k9.mail.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An OutputStream that collects everything written to it in a growable in-memory buffer. Once
+ * more than the given threshold has been written the content is moved to a temp file instead.
+ *
+ * <p>
+ * The collected data is available via {@link #getSize()} and {@link #writeTo(OutputStream)}.
+ * After {@link #reset()} the stream can be used again. The memory buffer is kept for the next
+ * use, a temp file is deleted. The stream has to be closed to delete the temp file.
+ * </p>
+ */
+public class SpooledOutputStream extends OutputStream {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final int mThreshold;
+    private final File mTempDirectory;
+
+    private byte[] mBuffer;
+    private int mCount;
+
+    private File mFile;
+    private OutputStream mFileOut;
+    private long mFileSize;
+
+    /**
+     * @param threshold
+     *         Number of bytes kept in memory before the content is spooled to a temp file.
+     * @param tempDirectory
+     *         Directory for the temp file or {@code null} to use the default temp directory.
+     */
+    public SpooledOutputStream(int threshold, File tempDirectory) {
+        mThreshold = threshold;
+        mTempDirectory = tempDirectory;
+        mBuffer = new byte[Math.min(INITIAL_BUFFER_SIZE, threshold)];
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (mFileOut == null && mCount < mBuffer.length) {
+            mBuffer[mCount++] = (byte) oneByte;
+            return;
+        }
+        write(new byte[] { (byte) oneByte }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int len) throws IOException {
+        if (mFileOut == null) {
+            if (mCount + len <= mThreshold) {
+                ensureCapacity(mCount + len);
+                System.arraycopy(b, offset, mBuffer, mCount, len);
+                mCount += len;
+                return;
+            }
+            spool();
+        }
+        mFileOut.write(b, offset, len);
+        mFileSize += len;
+    }
+
+    /**
+     * Returns the number of bytes written since the last {@link #reset()}.
+     */
+    public long getSize() {
+        return (mFileOut == null) ? mCount : mFileSize;
+    }
+
+    /**
+     * Returns whether the content has been moved to a temp file.
+     */
+    public boolean isSpooled() {
+        return mFileOut != null;
+    }
+
+    /**
+     * Writes the collected data to the given stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (mFileOut == null) {
+            out.write(mBuffer, 0, mCount);
+            return;
+        }
+
+        mFileOut.flush();
+        InputStream in = new FileInputStream(mFile);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a copy of the collected data.
+     *
+     * <p>Should only be used if the content wasn't spooled to a temp file.</p>
+     */
+    public byte[] toByteArray() throws IOException {
+        if (mFileOut == null) {
+            byte[] result = new byte[mCount];
+            System.arraycopy(mBuffer, 0, result, 0, mCount);
+            return result;
+        }
+
+        mFileOut.flush();
+        InputStream in = new FileInputStream(mFile);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Discards the collected data so the stream can be used again.
+     */
+    public void reset() {
+        mCount = 0;
+        if (mFileOut != null) {
+            IOUtils.closeQuietly(mFileOut);
+            mFileOut = null;
+            mFileSize = 0;
+        }
+        if (mFile != null) {
+            mFile.delete();
+            mFile = null;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mFileOut != null) {
+            mFileOut.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        reset();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            byte[] newBuffer = new byte[Math.min(Math.max(mBuffer.length * 2, capacity), mThreshold)];
+            System.arraycopy(mBuffer, 0, newBuffer, 0, mCount);
+            mBuffer = newBuffer;
+        }
+    }
+
+    private void spool() throws IOException {
+        mFile = File.createTempFile("spool", null, mTempDirectory);
+        try {
+            mFileOut = new BufferedOutputStream(new FileOutputStream(mFile));
+        } catch (IOException e) {
+            mFile.delete();
+            mFile = null;
+            throw e;
+        }
+        mFileOut.write(mBuffer, 0, mCount);
+        mFileSize = mCount;
+        mCount = 0;
+    }
+}
@@ -26,6 +26,10 @@ public class BinaryTempFileBody implements Body {
         mTempDirectory = tempDirectory;
     }
 
+    public static File getTempDirectory() {
+        return mTempDirectory;
+    }
+
     public void setEncoding(String encoding) throws MessagingException {
         mEncoding  = encoding;
     }
@@ -0,0 +1,55 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.SpooledOutputStream;
+
+/**
+ * A {@link MimeMessage} that caches its serialized form.
+ *
+ * <p>
+ * The message is serialized once when the object is created, e.g. on a worker thread.
+ * {@link #writeTo(OutputStream)}, {@link #calculateSize()} and
+ * {@link #serializeTo(SpooledOutputStream)} only copy the cached bytes afterwards.
+ * Headers and body must not be modified after creation, flags and UID can be changed.
+ * </p>
+ */
+public class SerializedMessage extends MimeMessage {
+    private final byte[] mData;
+
+    /**
+     * Creates a copy of the given message and serializes it.
+     *
+     * @param message
+     *         The message to serialize.
+     * @param buffer
+     *         A buffer used to serialize the message. It is reset before use and can be reused
+     *         for the next message afterwards.
+     */
+    public SerializedMessage(MimeMessage message, SpooledOutputStream buffer)
+            throws IOException, MessagingException {
+        message.copy(this);
+
+        buffer.reset();
+        message.serializeTo(buffer);
+        mData = buffer.toByteArray();
+        buffer.reset();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        out.write(mData);
+    }
+
+    @Override
+    public long calculateSize() {
+        return mData.length;
+    }
+
+    @Override
+    public void serializeTo(SpooledOutputStream out) throws IOException, MessagingException {
+        out.write(mData);
+    }
+}
@@ -4,23 +4,112 @@ import android.text.TextUtils;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Parses IMAP responses into {@link ImapResponse} objects.
+ *
+ * <p>
+ * The parser reads the stream in blocks into a buffer of its own and scans the buffer for the end
+ * of each token, so a token costs a single copy into its string. Common atoms like "OK" or
+ * "FETCH" are returned as shared string instances. Literals handed to an
+ * {@link IImapResponseCallback} are read through the same buffer. Literals larger than
+ * {@link #LITERAL_SPOOL_THRESHOLD} that the callback of a response doesn't consume are written
+ * to a {@link SpooledLiteral} instead of being returned as a string. Responses read without a
+ * callback never contain spooled literals. The response owns its spooled literals, see
+ * {@link ImapResponse#discardSpooledLiterals()}.
+ * </p>
+ */
 public class ImapResponseParser {
     private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat2 = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat3 = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
 
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Size in bytes above which a literal of a response read with a callback is spooled to a temp
+     * file. Requires {@link BinaryTempFileBody#setTempDirectory(File)} to have been called.
+     */
+    public static final int LITERAL_SPOOL_THRESHOLD = 64 * 1024;
+
+    /**
+     * Atoms that occur in most responses. The parser returns these instances instead of creating
+     * a new string for every occurrence.
+     */
+    private static final String[] COMMON_ATOMS = {
+        "OK", "NO", "BAD", "BYE", "PREAUTH", "NIL",
+        "FETCH", "EXISTS", "RECENT", "EXPUNGE", "UID", "FLAGS", "INTERNALDATE", "RFC822.SIZE",
+        "BODY", "BODYSTRUCTURE", "ENVELOPE", "HEADER", "TEXT",
+        "CAPABILITY", "LIST", "LSUB", "NAMESPACE", "SEARCH", "STATUS",
+        "UIDVALIDITY", "UIDNEXT", "UNSEEN", "PERMANENTFLAGS", "READ-WRITE", "READ-ONLY",
+        "APPENDUID", "COPYUID", "TRYCREATE", "ALERT",
+        "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent", "\\*",
+        "\\Noselect", "\\HasChildren", "\\HasNoChildren"
+    };
+
+    /** {@link #COMMON_ATOMS} indexed by their length. */
+    private static final String[][] COMMON_ATOMS_BY_LENGTH;
+
+    /** Characters that end an atom. */
+    private static final boolean[] ATOM_SPECIALS = new boolean[256];
+
+    static {
+        int maxLength = 0;
+        for (String atom : COMMON_ATOMS) {
+            maxLength = Math.max(maxLength, atom.length());
+        }
+        COMMON_ATOMS_BY_LENGTH = new String[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            ArrayList<String> atoms = new ArrayList<String>();
+            for (String atom : COMMON_ATOMS) {
+                if (atom.length() == length) {
+                    atoms.add(atom);
+                }
+            }
+            COMMON_ATOMS_BY_LENGTH[length] = atoms.toArray(new String[atoms.size()]);
+        }
+
+        // docs claim that flags are \ atom but atom isn't supposed to contain * and some flags
+        // contain *, so '%', '*' and '\' are allowed.
+        for (int ch = 0x00; ch <= 0x1f; ch++) {
+            ATOM_SPECIALS[ch] = true;
+        }
+        ATOM_SPECIALS[0x7f] = true;
+        for (char ch : new char[] { '(', ')', '{', ' ', '[', ']', '"' }) {
+            ATOM_SPECIALS[ch] = true;
+        }
+    }
+
     private PeekableInputStream mIn;
     private ImapResponse mResponse;
     private Exception mException;
 
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+
+    /** Collects tokens that don't fit into the rest of {@link #mBuffer}. */
+    private byte[] mToken = new byte[256];
+
+    private final InputStream mLiteralIn = new BufferedResponseInputStream();
+
     public ImapResponseParser(PeekableInputStream in) {
         this.mIn = in;
     }
@@ -34,12 +123,13 @@ public class ImapResponseParser {
      * ImapResponse object that represents it.
      */
     public ImapResponse readResponse(IImapResponseCallback callback) throws IOException {
+        ImapResponse response = new ImapResponse();
+        boolean success = false;
         try {
-            ImapResponse response = new ImapResponse();
             mResponse = response;
             mResponse.mCallback = callback;
 
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '*') {
                 parseUntaggedResponse();
                 readTokens(response);
@@ -55,8 +145,12 @@ public class ImapResponseParser {
                 throw new RuntimeException("readResponse(): Exception in callback method", mException);
             }
 
+            success = true;
             return response;
         } finally {
+            if (!success) {
+                response.discardSpooledLiterals();
+            }
             mResponse.mCallback = null;
             mResponse = null;
             mException = null;
@@ -109,7 +203,7 @@ public class ImapResponseParser {
     private void parseResponseText(ImapResponse parent) throws IOException {
         skipIfSpace();
 
-        int next = mIn.peek();
+        int next = peek();
         if (next == '[') {
             parseSequence(parent);
             skipIfSpace();
@@ -125,7 +219,7 @@ public class ImapResponseParser {
     }
 
     private void skipIfSpace() throws IOException {
-        if (mIn.peek() == ' ') {
+        if (peek() == ' ') {
             expect(' ');
         }
     }
@@ -150,7 +244,7 @@ public class ImapResponseParser {
 
     private Object parseToken(ImapList parent) throws IOException {
         while (true) {
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '(') {
                 return parseList(parent);
             } else if (ch == '[') {
@@ -240,30 +334,33 @@ public class ImapResponseParser {
     }
 
     private String parseAtom() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
+        int length = 0;
         while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
+            if (mPosition == mLimit && !fill()) {
                 throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                       ch == '[' || ch == ']' ||
-                       // docs claim that flags are \ atom but atom isn't supposed to
-                       // contain
-                       // * and some flags contain *
-                       // ch == '%' || ch == '*' ||
-//                    ch == '%' ||
-                       // TODO probably should not allow \ and should recognize
-                       // it as a flag instead
-                       // ch == '"' || ch == '\' ||
-                       ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
+            }
+            byte[] buffer = mBuffer;
+            int start = mPosition;
+            int end = start;
+            while (end < mLimit && !ATOM_SPECIALS[buffer[end] & 0xff]) {
+                end++;
+            }
+            mPosition = end;
+            if (end == mLimit) {
+                // The atom continues after the buffered data.
+                length = appendToken(length, buffer, start, end - start);
+                continue;
+            }
+
+            if (length == 0) {
+                if (start == end) {
+                    int ch = buffer[end] & 0xff;
                     throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
                 }
-                return sb.toString();
-            } else {
-                sb.append((char)mIn.read());
+                return atom(buffer, start, end - start);
             }
+            length = appendToken(length, buffer, start, end - start);
+            return atom(mToken, 0, length);
         }
     }
 
@@ -282,7 +379,7 @@ public class ImapResponseParser {
         }
 
         if (mResponse.mCallback != null) {
-            FixedLengthInputStream fixed = new FixedLengthInputStream(mIn, size);
+            FixedLengthInputStream fixed = new FixedLengthInputStream(mLiteralIn, size);
 
             Object result = null;
             try {
@@ -308,12 +405,16 @@ public class ImapResponseParser {
             if (result != null) {
                 return result;
             }
+
+            if (size > LITERAL_SPOOL_THRESHOLD && BinaryTempFileBody.getTempDirectory() != null) {
+                return spoolLiteral(size);
+            }
         }
 
         byte[] data = new byte[size];
         int read = 0;
         while (read != size) {
-            int count = mIn.read(data, read, size - read);
+            int count = mLiteralIn.read(data, read, size - read);
             if (count == -1) {
                 throw new IOException("parseLiteral(): end of stream reached");
             }
@@ -323,48 +424,224 @@ public class ImapResponseParser {
         return new String(data, "US-ASCII");
     }
 
+    private SpooledLiteral spoolLiteral(int size) throws IOException {
+        SpooledLiteral literal = new SpooledLiteral();
+        mResponse.addSpooledLiteral(literal);
+        OutputStream out = literal.getOutputStream();
+        try {
+            if (IOUtils.copy(new FixedLengthInputStream(mLiteralIn, size), out) != size) {
+                throw new IOException("parseLiteral(): end of stream reached");
+            }
+        } finally {
+            out.close();
+        }
+        return literal;
+    }
+
     private String parseQuoted() throws IOException {
         expect('"');
 
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        boolean escape = false;
-        while ((ch = mIn.read()) != -1) {
-            if (!escape && (ch == '\\')) {
-                // Found the escape character
-                escape = true;
-            } else if (!escape && (ch == '"')) {
-                return sb.toString();
+        int length = 0;
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("parseQuoted(): end of stream reached");
+            }
+            byte[] buffer = mBuffer;
+            int start = mPosition;
+            int end = start;
+            while (end < mLimit && buffer[end] != '"' && buffer[end] != '\\') {
+                end++;
+            }
+            mPosition = end;
+            if (end == mLimit) {
+                length = appendToken(length, buffer, start, end - start);
+            } else if (buffer[end] == '"') {
+                mPosition++;
+                if (length == 0) {
+                    return newString(buffer, start, end - start);
+                }
+                length = appendToken(length, buffer, start, end - start);
+                return newString(mToken, 0, length);
             } else {
-                sb.append((char)ch);
-                escape = false;
+                // Found the escape character, keep the next character whatever it is.
+                length = appendToken(length, buffer, start, end - start);
+                mPosition++;
+                int ch = read();
+                if (ch == -1) {
+                    throw new IOException("parseQuoted(): end of stream reached");
+                }
+                length = appendToken(length, (byte) ch);
             }
         }
-        throw new IOException("parseQuoted(): end of stream reached");
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = mIn.read()) != -1) {
-            if (ch == end) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
+        int length = 0;
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("readStringUntil(): end of stream reached");
+            }
+            byte[] buffer = mBuffer;
+            int start = mPosition;
+            int stop = start;
+            while (stop < mLimit && buffer[stop] != (byte) end) {
+                stop++;
             }
+            mPosition = stop;
+            if (stop == mLimit) {
+                length = appendToken(length, buffer, start, stop - start);
+                continue;
+            }
+
+            mPosition++;
+            if (length == 0) {
+                return newString(buffer, start, stop - start);
+            }
+            length = appendToken(length, buffer, start, stop - start);
+            return newString(mToken, 0, length);
         }
-        throw new IOException("readStringUntil(): end of stream reached");
     }
 
     private int expect(char ch) throws IOException {
         int d;
-        if ((d = mIn.read()) != ch) {
+        if ((d = read()) != ch) {
             throw new IOException(String.format("Expected %04x (%c) but got %04x (%c)", (int)ch,
                                                 ch, d, (char)d));
         }
         return d;
     }
 
+    private int peek() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition] & 0xff;
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xff;
+    }
+
+    /**
+     * Reads the next block of the stream into the empty buffer.
+     *
+     * @return {@code false} if the end of the stream has been reached.
+     */
+    private boolean fill() throws IOException {
+        int count = mIn.read(mBuffer, 0, mBuffer.length);
+        mPosition = 0;
+        mLimit = Math.max(count, 0);
+        return count > 0;
+    }
+
+    /**
+     * Appends bytes to {@link #mToken}, growing it if necessary.
+     *
+     * @return The new length of the token.
+     */
+    private int appendToken(int length, byte[] data, int offset, int count) {
+        if (length + count > mToken.length) {
+            byte[] token = new byte[Math.max(mToken.length * 2, length + count)];
+            System.arraycopy(mToken, 0, token, 0, length);
+            mToken = token;
+        }
+        System.arraycopy(data, offset, mToken, length, count);
+        return length + count;
+    }
+
+    private int appendToken(int length, byte b) {
+        if (length == mToken.length) {
+            byte[] token = new byte[mToken.length * 2];
+            System.arraycopy(mToken, 0, token, 0, length);
+            mToken = token;
+        }
+        mToken[length] = b;
+        return length + 1;
+    }
+
+    /**
+     * Returns the string for an atom, using the shared instance of common atoms.
+     */
+    private static String atom(byte[] data, int offset, int length) {
+        if (length < COMMON_ATOMS_BY_LENGTH.length) {
+            for (String atom : COMMON_ATOMS_BY_LENGTH[length]) {
+                if (regionEquals(atom, data, offset)) {
+                    return atom;
+                }
+            }
+        }
+        return newString(data, offset, length);
+    }
+
+    private static boolean regionEquals(String atom, byte[] data, int offset) {
+        for (int i = 0, length = atom.length(); i < length; i++) {
+            if (atom.charAt(i) != (data[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a string mapping every byte to the character with the same value (ISO-8859-1),
+     * like the character-by-character parsing did.
+     */
+    @SuppressWarnings("deprecation")
+    private static String newString(byte[] data, int offset, int length) {
+        return new String(data, 0, offset, length);
+    }
+
+    /**
+     * Gives literal callbacks access to the stream. Data already in the parser's buffer is
+     * returned first; large reads bypass the buffer.
+     */
+    private class BufferedResponseInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return ImapResponseParser.this.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPosition == mLimit) {
+                if (length >= mBuffer.length) {
+                    return mIn.read(b, offset, length);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(length, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, b, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            if (mPosition == mLimit) {
+                return mIn.skip(n);
+            }
+            int count = (int) Math.min(n, mLimit - mPosition);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (mLimit - mPosition) + mIn.available();
+        }
+    }
+
     /**
      * Represents an IMAP list response and is also the base class for the
      * ImapResponse.
@@ -500,6 +777,41 @@ public class ImapResponseParser {
         boolean mCommandContinuationRequested;
         String mTag;
 
+        private List<SpooledLiteral> mSpooledLiterals;
+
+        /**
+         * Returns the tag of a tagged response or {@code null} for untagged responses and
+         * command continuation requests.
+         */
+        public String getTag() {
+            return mTag;
+        }
+
+        public boolean isContinuationRequested() {
+            return mCommandContinuationRequested;
+        }
+
+        void addSpooledLiteral(SpooledLiteral literal) {
+            if (mSpooledLiterals == null) {
+                mSpooledLiterals = new ArrayList<SpooledLiteral>(1);
+            }
+            mSpooledLiterals.add(literal);
+        }
+
+        /**
+         * Deletes the temp files of the literals of this response that were spooled to disk. Must
+         * be called once a response read with a callback has been handled; the literals can't be
+         * read afterwards.
+         */
+        public void discardSpooledLiterals() {
+            if (mSpooledLiterals != null) {
+                for (SpooledLiteral literal : mSpooledLiterals) {
+                    literal.discard();
+                }
+                mSpooledLiterals = null;
+            }
+        }
+
         public String getAlertText() {
             if (size() > 1 && equalsIgnoreCase("[ALERT]", get(1))) {
                 StringBuilder sb = new StringBuilder();
@@ -519,6 +831,44 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * A literal that was too large to be kept in memory. It contains the raw bytes sent by the
+     * server and can be read once using {@link #getInputStream()}; closing that stream deletes the
+     * temp file. Otherwise it's deleted by {@link ImapResponse#discardSpooledLiterals()}.
+     */
+    public static class SpooledLiteral {
+        private File mFile;
+
+        OutputStream getOutputStream() throws IOException {
+            mFile = File.createTempFile("literal", null, BinaryTempFileBody.getTempDirectory());
+            return new FileOutputStream(mFile);
+        }
+
+        public InputStream getInputStream() throws MessagingException {
+            try {
+                return new FilterInputStream(new FileInputStream(mFile)) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            discard();
+                        }
+                    }
+                };
+            } catch (IOException ioe) {
+                throw new MessagingException("Unable to open literal", ioe);
+            }
+        }
+
+        void discard() {
+            if (mFile != null) {
+                mFile.delete();
+                mFile = null;
+            }
+        }
+    }
+
     public boolean isStatusResponse(String symbol) {
         return symbol.equalsIgnoreCase("OK") ||
                symbol.equalsIgnoreCase("NO") ||
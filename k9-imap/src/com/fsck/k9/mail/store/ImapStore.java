@@ -10,9 +10,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -25,8 +23,6 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
-import java.security.Security;
 import java.security.cert.CertificateException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -47,13 +43,23 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.TrustManager;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 
 import org.apache.commons.io.IOUtils;
 
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
 import android.util.Log;
 
 import com.beetstra.jutf7.CharsetProvider;
@@ -63,6 +69,7 @@ import com.fsck.k9.R;
 import com.fsck.k9.controller.MessageRetrievalListener;
 import com.fsck.k9.helper.StringUtils;
 import com.fsck.k9.helper.Utility;
+import com.fsck.k9.mail.AppendFailedException;
 import com.fsck.k9.mail.AuthType;
 import com.fsck.k9.mail.Authentication;
 import com.fsck.k9.mail.AuthenticationFailedException;
@@ -72,6 +79,7 @@ import com.fsck.k9.mail.ConnectionSecurity;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.FolderNotFoundException;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
@@ -80,9 +88,12 @@ import com.fsck.k9.mail.Pusher;
 import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.filter.Base64;
-import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.filter.CountingInputStream;
+import com.fsck.k9.mail.filter.CountingOutputStream;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.filter.SpooledOutputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
@@ -90,8 +101,22 @@ import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.ImapResponseParser.SpooledLiteral;
+import com.fsck.k9.mail.store.imap.CompressionStatistics;
+import com.fsck.k9.mail.store.imap.ConnectionPoolStatistics;
+import com.fsck.k9.mail.store.imap.ConnectionStatistics;
+import com.fsck.k9.mail.store.imap.HappyEyeballsConnector;
+import com.fsck.k9.mail.store.imap.HostResolver;
+import com.fsck.k9.mail.store.imap.ImapCommandPipeline;
+import com.fsck.k9.mail.store.imap.ImapConnectionPool;
+import com.fsck.k9.mail.store.imap.ImapDiscovery;
+import com.fsck.k9.mail.store.imap.ImapDiscoveryCache;
+import com.fsck.k9.mail.store.imap.ImapTransport;
 import com.fsck.k9.mail.store.imap.ImapUtility;
+import com.fsck.k9.mail.store.imap.NioSslImapTransport;
+import com.fsck.k9.mail.store.imap.SocketImapTransport;
 import com.fsck.k9.mail.transport.imap.ImapSettings;
+import com.fsck.k9.net.ssl.SSLContextCache;
 import com.fsck.k9.net.ssl.TrustManagerFactory;
 import com.fsck.k9.net.ssl.TrustedSocketFactory;
 
@@ -111,6 +136,41 @@ public class ImapStore extends Store {
 
     private static int FETCH_WINDOW_SIZE = 100;
 
+    /**
+     * Maximum number of APPEND commands using non-synchronizing literals that are sent before
+     * waiting for tagged responses. This keeps the server from blocking on writing responses
+     * we don't read while we are still sending.
+     */
+    private static final int APPEND_PIPELINE_WINDOW = 32;
+
+    /**
+     * Maximum size of a non-synchronizing literal for servers that only support LITERAL-
+     * (RFC 7888).
+     */
+    private static final int LITERAL_MINUS_MAX_SIZE = 4096;
+
+    /**
+     * Size up to which a message is serialized into memory before APPENDing it. Larger messages
+     * are spooled to a temp file.
+     */
+    private static final int APPEND_BUFFER_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Sizes of the buffers between the connection streams and the socket. The output buffer
+     * bounds how much of a command or literal is handed to the socket (and thus to TLS) at once.
+     */
+    private static int sInputBufferSize = 8192;
+    private static int sOutputBufferSize = 16384;
+
+    /** Size of the kernel socket send and receive buffers or 0 to use the system default. */
+    private static int sSocketBufferSize = 0;
+
+    /** Whether implicit TLS connections use {@link NioSslImapTransport}. */
+    private static boolean sUseNioTransport = false;
+
+    /** Maximum number of idle connections kept per store. */
+    private static int sConnectionPoolSize = 4;
+
     private Set<Flag> mPermanentFlagsIndex = new HashSet<Flag>();
 
     private static final String CAPABILITY_IDLE = "IDLE";
@@ -124,6 +184,10 @@ public class ImapStore extends Store {
     private static final String CAPABILITY_CAPABILITY = "CAPABILITY";
     private static final String COMMAND_CAPABILITY = "CAPABILITY";
 
+    private static final String CAPABILITY_MULTIAPPEND = "MULTIAPPEND";
+    private static final String CAPABILITY_LITERAL_PLUS = "LITERAL+";
+    private static final String CAPABILITY_LITERAL_MINUS = "LITERAL-";
+
     private static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     private static final String COMMAND_COMPRESS_DEFLATE = "COMPRESS DEFLATE";
 
@@ -131,6 +195,38 @@ public class ImapStore extends Store {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+    /**
+     * Sets the sizes of the buffers used for new connections.
+     */
+    public static void setStreamBufferSizes(int inputBufferSize, int outputBufferSize) {
+        sInputBufferSize = inputBufferSize;
+        sOutputBufferSize = outputBufferSize;
+    }
+
+    /**
+     * Sets the size of the kernel send and receive buffers of new connections. Use 0 to keep
+     * the system default. Must be set before connecting to have an effect on the TCP window.
+     */
+    public static void setSocketBufferSize(int socketBufferSize) {
+        sSocketBufferSize = socketBufferSize;
+    }
+
+    /**
+     * Sets whether new connections using implicit TLS run over a non-blocking
+     * {@link java.nio.channels.SocketChannel} with an {@link javax.net.ssl.SSLEngine} instead of
+     * an {@link javax.net.ssl.SSLSocket}.
+     */
+    public static void setUseNioTransport(boolean useNioTransport) {
+        sUseNioTransport = useNioTransport;
+    }
+
+    /**
+     * Sets the maximum number of idle connections kept by stores created afterwards.
+     */
+    public static void setConnectionPoolSize(int connectionPoolSize) {
+        sConnectionPoolSize = connectionPoolSize;
+    }
+
     /**
      * Decodes an ImapStore URI.
      *
@@ -381,6 +477,21 @@ public class ImapStore extends Store {
             return mAccount.useCompression(type);
         }
 
+        @Override
+        public CompressionStatistics getCompressionStatistics() {
+            return mCompressionStatistics;
+        }
+
+        @Override
+        public ConnectionStatistics getConnectionStatistics() {
+            return mConnectionStatistics;
+        }
+
+        @Override
+        public ImapDiscoveryCache getDiscoveryCache() {
+            return mAccount.getDiscoveryCache();
+        }
+
         @Override
         public String getPathPrefix() {
             return mPathPrefix;
@@ -414,14 +525,23 @@ public class ImapStore extends Store {
 
     private static final SimpleDateFormat RFC3501_DATE = new SimpleDateFormat("dd-MMM-yyyy", Locale.US);
 
-    private LinkedList<ImapConnection> mConnections =
-        new LinkedList<ImapConnection>();
+    private final ImapConnectionPool mConnectionPool = new ImapConnectionPool(sConnectionPoolSize);
 
     /**
      * Charset used for converting folder names to and from UTF-7 as defined by RFC 3501.
      */
     private Charset mModifiedUtf7Charset;
 
+    /**
+     * Compression statistics of all closed connections of this store.
+     */
+    private final CompressionStatistics mCompressionStatistics = new CompressionStatistics();
+
+    /**
+     * Setup times of all connections opened by this store.
+     */
+    private final ConnectionStatistics mConnectionStatistics = new ConnectionStatistics();
+
     /**
      * Cache of ImapFolder objects. ImapFolders are attached to a given folder on the server
      * and as long as their associated connection remains open they are reusable between
@@ -681,34 +801,46 @@ public class ImapStore extends Store {
         }
     }
 
+    /**
+     * Opens a connection to check the server certificate and the credentials without listing
+     * any folders. The connection is kept for reuse.
+     */
+    public void checkConnection() throws MessagingException {
+        ImapConnection connection = getConnection();
+        try {
+            connection.open();
+        } catch (IOException ioe) {
+            connection.close();
+            throw new MessagingException("Unable to open connection.", ioe);
+        } catch (MessagingException me) {
+            connection.close();
+            throw new MessagingException("Unable to open connection.", me);
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
     /**
      * Gets a connection if one is available for reuse, or creates a new one if not.
      * @return
      */
     private ImapConnection getConnection() throws MessagingException {
-        synchronized (mConnections) {
-            ImapConnection connection = null;
-            while ((connection = mConnections.poll()) != null) {
-                try {
-                    connection.executeSimpleCommand("NOOP");
-                    break;
-                } catch (IOException ioe) {
-                    connection.close();
-                }
-            }
-            if (connection == null) {
-                connection = new ImapConnection(new StoreImapSettings());
-            }
-            return connection;
+        ImapConnection connection = mConnectionPool.checkout();
+        if (connection == null) {
+            connection = new ImapConnection(new StoreImapSettings());
         }
+        return connection;
     }
 
     private void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isOpen()) {
-            synchronized (mConnections) {
-                mConnections.offer(connection);
-            }
-        }
+        mConnectionPool.release(connection);
+    }
+
+    /**
+     * Returns the reuse and validation counts of the connection pool of this store.
+     */
+    public ConnectionPoolStatistics getConnectionPoolStatistics() {
+        return mConnectionPool.getStatistics();
     }
 
     /**
@@ -729,6 +861,18 @@ public class ImapStore extends Store {
         return "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
     }
 
+    /**
+     * Returns whether the string can be sent as part of a command, which is encoded as US-ASCII.
+     */
+    private static boolean isAscii(String str) {
+        for (int i = 0, length = str.length(); i < length; i++) {
+            if (str.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private String encodeFolderName(String name) {
         try {
             ByteBuffer bb = mModifiedUtf7Charset.encode(name);
@@ -781,8 +925,30 @@ public class ImapStore extends Store {
         return true;
     }
 
+    /**
+     * Returns the byte counts of all connections of this store that used COMPRESS=DEFLATE, i.e.
+     * of the closed ones and the ones waiting in the connection pool.
+     */
+    public CompressionStatistics getCompressionStatistics() {
+        CompressionStatistics statistics = new CompressionStatistics();
+        statistics.add(mCompressionStatistics);
+        for (ImapConnection connection : mConnectionPool.getIdleConnections()) {
+            connection.addCompressionStatistics(statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the time spent opening the connections of this store.
+     */
+    public ConnectionStatistics getConnectionStatistics() {
+        ConnectionStatistics statistics = new ConnectionStatistics();
+        statistics.add(mConnectionStatistics);
+        return statistics;
+    }
+
 
-    class ImapFolder extends Folder {
+    public class ImapFolder extends Folder {
         private String mName;
         protected volatile int mMessageCount = -1;
         protected volatile long uidNext = -1L;
@@ -792,6 +958,7 @@ public class ImapStore extends Store {
         private ImapStore store = null;
         Map<Long, String> msgSeqUidMap = new ConcurrentHashMap<Long, String>();
         private boolean mInSearch = false;
+        private SpooledOutputStream mAppendBuffer;
 
         public ImapFolder(ImapStore nStore, String name) {
             super(nStore.getAccount());
@@ -956,6 +1123,23 @@ public class ImapStore extends Store {
             return mConnection != null;
         }
 
+        /**
+         * Returns a pipeline for sending several independent commands (e.g. STATUS, UID SEARCH
+         * and APPENDs) over the connection of this folder without waiting for each response.
+         * Untagged responses (e.g. EXISTS) update the folder like those of synchronous commands.
+         * The folder must not be used otherwise until the pipeline has been closed.
+         */
+        public ImapCommandPipeline openPipeline() throws MessagingException {
+            checkOpen();
+            return new ImapCommandPipeline(mConnection,
+                    new ImapCommandPipeline.UntaggedResponseHandler() {
+                        @Override
+                        public void handleUntaggedResponse(ImapResponse response) {
+                            ImapFolder.this.handleUntaggedResponse(response);
+                        }
+                    });
+        }
+
         @Override
         public int getMode() {
             return mMode;
@@ -1499,58 +1683,64 @@ public class ImapStore extends Store {
 
                     do {
                         response = mConnection.readResponse(callback);
-
-                        if (response.mTag == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-                            ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-                            String uid = fetchList.getKeyedString("UID");
-                            long msgSeq = response.getLong(0);
-                            if (uid != null) {
-                                try {
-                                    msgSeqUidMap.put(msgSeq, uid);
-                                    if (K9.DEBUG) {
-                                        Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
+                        try {
+                            if (response.mTag == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                                ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                                String uid = fetchList.getKeyedString("UID");
+                                long msgSeq = response.getLong(0);
+                                if (uid != null) {
+                                    try {
+                                        msgSeqUidMap.put(msgSeq, uid);
+                                        if (K9.DEBUG) {
+                                            Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
+                                        }
+                                    } catch (Exception e) {
+                                        Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
                                     }
-                                } catch (Exception e) {
-                                    Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
                                 }
-                            }
-
-                            Message message = messageMap.get(uid);
-                            if (message == null) {
-                                if (K9.DEBUG)
-                                    Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
-
-                                handleUntaggedResponse(response);
-                                continue;
-                            }
-                            if (listener != null) {
-                                listener.messageStarted(uid, messageNumber++, messageMap.size());
-                            }
 
-                            ImapMessage imapMessage = (ImapMessage) message;
+                                Message message = messageMap.get(uid);
+                                if (message == null) {
+                                    if (K9.DEBUG)
+                                        Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
 
-                            Object literal = handleFetchResponse(imapMessage, fetchList);
+                                    handleUntaggedResponse(response);
+                                    continue;
+                                }
+                                if (listener != null) {
+                                    listener.messageStarted(uid, messageNumber++, messageMap.size());
+                                }
 
-                            if (literal != null) {
-                                if (literal instanceof String) {
-                                    String bodyString = (String)literal;
-                                    InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
-                                    imapMessage.parse(bodyStream);
-                                } else if (literal instanceof Integer) {
-                                    // All the work was done in FetchBodyCallback.foundLiteral()
-                                } else {
-                                    // This shouldn't happen
-                                    throw new MessagingException("Got FETCH response with bogus parameters");
+                                ImapMessage imapMessage = (ImapMessage) message;
+
+                                Object literal = handleFetchResponse(imapMessage, fetchList);
+
+                                if (literal != null) {
+                                    if (literal instanceof String || literal instanceof SpooledLiteral) {
+                                        InputStream bodyStream = openLiteral(literal);
+                                        try {
+                                            imapMessage.parse(bodyStream);
+                                        } finally {
+                                            bodyStream.close();
+                                        }
+                                    } else if (literal instanceof Integer) {
+                                        // All the work was done in FetchBodyCallback.foundLiteral()
+                                    } else {
+                                        // This shouldn't happen
+                                        throw new MessagingException("Got FETCH response with bogus parameters");
+                                    }
                                 }
-                            }
 
-                            if (listener != null) {
-                                listener.messageFinished(message, messageNumber, messageMap.size());
+                                if (listener != null) {
+                                    listener.messageFinished(message, messageNumber, messageMap.size());
+                                }
+                            } else {
+                                handleUntaggedResponse(response);
                             }
-                        } else {
-                            handleUntaggedResponse(response);
+                        } finally {
+                            // Spooled literals not consumed above, e.g. of unrequested messages
+                            response.discardSpooledLiterals();
                         }
-
                     } while (response.mTag == null);
                 } catch (IOException ioe) {
                     throw ioExceptionHandler(mConnection, ioe);
@@ -1590,54 +1780,59 @@ public class ImapStore extends Store {
 
                 do {
                     response = mConnection.readResponse(callback);
+                    try {
+                        if ((response.mTag == null) &&
+                                (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH"))) {
+                            ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                            String uid = fetchList.getKeyedString("UID");
 
-                    if ((response.mTag == null) &&
-                            (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH"))) {
-                        ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-                        String uid = fetchList.getKeyedString("UID");
-
-                        if (!message.getUid().equals(uid)) {
-                            if (K9.DEBUG)
-                                Log.d(K9.LOG_TAG, "Did not ask for UID " + uid + " for " + getLogId());
-
-                            handleUntaggedResponse(response);
-                            continue;
-                        }
-                        if (listener != null) {
-                            listener.messageStarted(uid, messageNumber++, 1);
-                        }
+                            if (!message.getUid().equals(uid)) {
+                                if (K9.DEBUG)
+                                    Log.d(K9.LOG_TAG, "Did not ask for UID " + uid + " for " + getLogId());
 
-                        ImapMessage imapMessage = (ImapMessage) message;
+                                handleUntaggedResponse(response);
+                                continue;
+                            }
+                            if (listener != null) {
+                                listener.messageStarted(uid, messageNumber++, 1);
+                            }
 
-                        Object literal = handleFetchResponse(imapMessage, fetchList);
+                            ImapMessage imapMessage = (ImapMessage) message;
 
-                        if (literal != null) {
-                            if (literal instanceof Body) {
-                                // Most of the work was done in FetchAttchmentCallback.foundLiteral()
-                                part.setBody((Body)literal);
-                            } else if (literal instanceof String) {
-                                String bodyString = (String)literal;
-                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                            Object literal = handleFetchResponse(imapMessage, fetchList);
 
-                                String contentTransferEncoding = part
-                                        .getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
-                                String contentType = part
-                                        .getHeader(MimeHeader.HEADER_CONTENT_TYPE)[0];
-                                part.setBody(MimeUtility.decodeBody(bodyStream,
-                                        contentTransferEncoding, contentType));
-                            } else {
-                                // This shouldn't happen
-                                throw new MessagingException("Got FETCH response with bogus parameters");
+                            if (literal != null) {
+                                if (literal instanceof String || literal instanceof SpooledLiteral) {
+                                    InputStream bodyStream = openLiteral(literal);
+                                    try {
+                                        String contentTransferEncoding = part
+                                                .getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
+                                        String contentType = part
+                                                .getHeader(MimeHeader.HEADER_CONTENT_TYPE)[0];
+                                        part.setBody(MimeUtility.decodeBody(bodyStream,
+                                                contentTransferEncoding, contentType));
+                                    } finally {
+                                        bodyStream.close();
+                                    }
+                                } else if (literal instanceof Body) {
+                                    // Most of the work was done in FetchAttchmentCallback.foundLiteral()
+                                    part.setBody((Body)literal);
+                                } else {
+                                    // This shouldn't happen
+                                    throw new MessagingException("Got FETCH response with bogus parameters");
+                                }
                             }
-                        }
 
-                        if (listener != null) {
-                            listener.messageFinished(message, messageNumber, 1);
+                            if (listener != null) {
+                                listener.messageFinished(message, messageNumber, 1);
+                            }
+                        } else {
+                            handleUntaggedResponse(response);
                         }
-                    } else {
-                        handleUntaggedResponse(response);
+                    } finally {
+                        // Spooled literals not consumed above, e.g. of unrequested messages
+                        response.discardSpooledLiterals();
                     }
-
                 } while (response.mTag == null);
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
@@ -1711,6 +1906,17 @@ public class ImapStore extends Store {
             return result;
         }
 
+        /**
+         * Returns a stream of the data of a literal that was returned as {@link String} or
+         * {@link SpooledLiteral} by the parser.
+         */
+        private InputStream openLiteral(Object literal) throws MessagingException {
+            if (literal instanceof SpooledLiteral) {
+                return ((SpooledLiteral) literal).getInputStream();
+            }
+            return new ByteArrayInputStream(((String) literal).getBytes());
+        }
+
         /**
          * Handle any untagged responses that the caller doesn't care to handle themselves.
          * @param responses
@@ -1962,6 +2168,25 @@ public class ImapStore extends Store {
          * server and changes the messages' UIDs to the new server UIDs.
          * </p>
          *
+         * <p>
+         * If the server supports MULTIAPPEND (RFC 3502) all messages are sent with a single
+         * APPEND command. Otherwise each message gets its own APPEND command, but the next
+         * command is sent as soon as the previous literal has been written, without waiting
+         * for the tagged response of the previous command.
+         * </p>
+         *
+         * <p>
+         * If the server supports LITERAL+ or LITERAL- (RFC 7888) the literals are sent as
+         * non-synchronizing literals, i.e. without waiting for a command continuation request.
+         * </p>
+         *
+         * <p>
+         * The method only returns normally once the server acknowledged all messages. If it
+         * fails after the server stored some of the messages, e.g. when a later APPEND of a
+         * pipeline is rejected or the connection is lost, an {@link AppendFailedException} tells
+         * how many of the leading messages are stored.
+         * </p>
+         *
          * @param messages
          *         The messages to append to the folder.
          *
@@ -1971,59 +2196,25 @@ public class ImapStore extends Store {
         public Map<String, String> appendMessages(Message[] messages) throws MessagingException {
             open(OPEN_MODE_RW);
             checkOpen();
+            // Message.equals() needs the folder of the message, so acknowledgements are tracked
+            // by index
+            boolean[] appended = new boolean[messages.length];
             try {
                 Map<String, String> uidMap = new HashMap<String, String>();
-                for (Message message : messages) {
-                    mConnection.sendCommand(
-                        String.format(Locale.US, "APPEND %s (%s) {%d}",
-                                      encodeString(encodeFolderName(getPrefixedName())),
-                                      combineFlags(message.getFlags()),
-                                      message.calculateSize()), false);
-
-                    ImapResponse response;
-                    do {
-                        response = mConnection.readResponse();
-                        handleUntaggedResponse(response);
-                        if (response.mCommandContinuationRequested) {
-                            EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(mConnection.mOut);
-                            message.writeTo(eolOut);
-                            eolOut.write('\r');
-                            eolOut.write('\n');
-                            eolOut.flush();
-                        }
-                    } while (response.mTag == null);
-
-                    if (response.size() > 1) {
-                        /*
-                         * If the server supports UIDPLUS, then along with the APPEND response it
-                         * will return an APPENDUID response code, e.g.
-                         *
-                         * 11 OK [APPENDUID 2 238268] APPEND completed
-                         *
-                         * We can use the UID included in this response to update our records.
-                         */
-                        Object responseList = response.get(1);
-
-                        if (responseList instanceof ImapList) {
-                            ImapList appendList = (ImapList) responseList;
-                            if (appendList.size() >= 3 &&
-                                    appendList.getString(0).equals("APPENDUID")) {
-
-                                String newUid = appendList.getString(2);
-
-                                if (!StringUtils.isNullOrEmpty(newUid)) {
-                                    message.setUid(newUid);
-                                    uidMap.put(message.getUid(), newUid);
-                                    continue;
-                                }
-                            }
-                        }
-                    }
+                List<Message> messagesWithoutUid = new ArrayList<Message>();
+                if (messages.length > 1 && mConnection.hasCapability(CAPABILITY_MULTIAPPEND)) {
+                    multiAppendMessages(messages, uidMap, messagesWithoutUid);
+                    // MULTIAPPEND is atomic, without an exception all messages are stored
+                    Arrays.fill(appended, true);
+                } else {
+                    pipelineAppendMessages(messages, appended, uidMap, messagesWithoutUid);
+                }
 
-                    /*
-                     * This part is executed in case the server does not support UIDPLUS or does
-                     * not implement the APPENDUID response code.
-                     */
+                /*
+                 * This part is executed in case the server does not support UIDPLUS or does
+                 * not implement the APPENDUID response code.
+                 */
+                for (Message message : messagesWithoutUid) {
                     String newUid = getUidFromMessageId(message);
                     if (K9.DEBUG) {
                         Log.d(K9.LOG_TAG, "Got UID " + newUid + " for message for " + getLogId());
@@ -2042,10 +2233,301 @@ public class ImapStore extends Store {
                  */
                 return (uidMap.size() == 0) ? null : uidMap;
             } catch (IOException ioe) {
-                throw ioExceptionHandler(mConnection, ioe);
+                throw getPartialAppendFailure(ioExceptionHandler(mConnection, ioe), appended);
+            } catch (MessagingException e) {
+                throw getPartialAppendFailure(e, appended);
+            } finally {
+                // Don't keep up to APPEND_BUFFER_THRESHOLD bytes for the lifetime of the folder
+                if (mAppendBuffer != null) {
+                    mAppendBuffer.close();
+                    mAppendBuffer = null;
+                }
+            }
+        }
+
+        /**
+         * Appends all messages with a single MULTIAPPEND command, e.g.
+         *
+         * <pre>
+         * 12 APPEND "SMS" (\Seen) {310}
+         * + Ready for literal data
+         * [message 1] (\Seen) {293}
+         * + Ready for literal data
+         * [message 2]
+         * 12 OK [APPENDUID 38505 3955:3956] APPEND completed
+         * </pre>
+         */
+        private void multiAppendMessages(Message[] messages, Map<String, String> uidMap,
+                List<Message> messagesWithoutUid) throws IOException, MessagingException {
+            String mailbox = encodeString(encodeFolderName(getPrefixedName()));
+            String tag = null;
+            for (Message message : messages) {
+                long size = serializeForAppend(message);
+                boolean nonSynchronizing = mConnection.canSendNonSynchronizingLiteral(size);
+                String literalSpec = String.format(Locale.US, "(%s) {%d%s}",
+                        combineFlags(message.getFlags()), size, nonSynchronizing ? "+" : "");
+                if (tag == null) {
+                    tag = mConnection.sendCommand(
+                            String.format(Locale.US, "APPEND %s %s", mailbox, literalSpec),
+                            false, !nonSynchronizing);
+                } else if (nonSynchronizing) {
+                    mConnection.mOut.write((" " + literalSpec + "\r\n").getBytes("US-ASCII"));
+                } else {
+                    mConnection.sendContinuation(" " + literalSpec);
+                }
+
+                if (!nonSynchronizing) {
+                    ImapResponse response;
+                    do {
+                        response = mConnection.readResponse();
+                        if (response.mTag != null) {
+                            // The server rejected the command before we sent all messages.
+                            throw getAppendFailure(response);
+                        }
+                        handleUntaggedResponse(response);
+                    } while (!response.mCommandContinuationRequested);
+                }
+
+                writeAppendLiteral();
+            }
+            mConnection.mOut.write('\r');
+            mConnection.mOut.write('\n');
+            mConnection.mOut.flush();
+
+            ImapResponse response;
+            do {
+                response = mConnection.readResponse();
+                handleUntaggedResponse(response);
+            } while (response.mTag == null);
+            checkAppendResponse(response);
+
+            /*
+             * For MULTIAPPEND the APPENDUID response code contains a UID set with one UID per
+             * appended message, in the order the messages were sent.
+             */
+            List<String> newUids = getAppendUids(response);
+            if (newUids != null && newUids.size() == messages.length) {
+                for (int i = 0; i < messages.length; i++) {
+                    uidMap.put(messages[i].getUid(), newUids.get(i));
+                    messages[i].setUid(newUids.get(i));
+                }
+            } else {
+                messagesWithoutUid.addAll(Arrays.asList(messages));
+            }
+        }
+
+        /**
+         * Appends the messages with one APPEND command per message. The next command is sent
+         * right after the literal of the previous one, tagged responses are matched back to
+         * their messages as they arrive.
+         *
+         * <p>
+         * With non-synchronizing literals up to {@link ImapStore#APPEND_PIPELINE_WINDOW}
+         * commands are streamed to the server before we start reading tagged responses.
+         * </p>
+         */
+        private void pipelineAppendMessages(Message[] messages, boolean[] appended,
+                Map<String, String> uidMap, List<Message> messagesWithoutUid)
+                throws IOException, MessagingException {
+            String mailbox = encodeString(encodeFolderName(getPrefixedName()));
+            Map<String, Integer> pending = new HashMap<String, Integer>();
+            MessagingException failure = null;
+            for (int i = 0; i < messages.length; i++) {
+                if (failure != null) {
+                    break;
+                }
+                Message message = messages[i];
+                long size = serializeForAppend(message);
+                boolean nonSynchronizing = mConnection.canSendNonSynchronizingLiteral(size);
+                String tag = mConnection.sendCommand(
+                    String.format(Locale.US, "APPEND %s (%s) {%d%s}",
+                                  mailbox,
+                                  combineFlags(message.getFlags()),
+                                  size, nonSynchronizing ? "+" : ""), false, !nonSynchronizing);
+                pending.put(tag, i);
+
+                if (nonSynchronizing) {
+                    writeAppendLiteral();
+                    mConnection.mOut.write('\r');
+                    mConnection.mOut.write('\n');
+
+                    while (pending.size() >= APPEND_PIPELINE_WINDOW) {
+                        mConnection.mOut.flush();
+                        ImapResponse response = mConnection.readResponse();
+                        MessagingException e = handleAppendResponse(response, messages, pending,
+                                appended, uidMap, messagesWithoutUid);
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                    continue;
+                }
+
+                ImapResponse response;
+                do {
+                    response = mConnection.readResponse();
+                    MessagingException e = handleAppendResponse(response, messages, pending,
+                            appended, uidMap, messagesWithoutUid);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                } while (!response.mCommandContinuationRequested && pending.containsKey(tag));
+
+                if (response.mCommandContinuationRequested) {
+                    writeAppendLiteral();
+                    mConnection.mOut.write('\r');
+                    mConnection.mOut.write('\n');
+                    mConnection.mOut.flush();
+                }
+            }
+
+            // Collect the tagged responses of all commands that are still outstanding.
+            mConnection.mOut.flush();
+            while (!pending.isEmpty()) {
+                ImapResponse response = mConnection.readResponse();
+                MessagingException e = handleAppendResponse(response, messages, pending,
+                        appended, uidMap, messagesWithoutUid);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
             }
         }
 
+        /**
+         * Processes a response to one of the pending APPEND commands. {@code pending} maps the
+         * tags to the indices of the messages, {@code appended} is set for the messages the
+         * server acknowledged.
+         *
+         * @return The exception describing the failure if the server rejected the APPEND
+         *         command, {@code null} otherwise.
+         */
+        private MessagingException handleAppendResponse(ImapResponse response,
+                Message[] messages, Map<String, Integer> pending, boolean[] appended,
+                Map<String, String> uidMap, List<Message> messagesWithoutUid) {
+            if (response.mTag == null) {
+                handleUntaggedResponse(response);
+                return null;
+            }
+
+            Integer index = pending.remove(response.mTag);
+            if (index == null) {
+                Log.w(K9.LOG_TAG, "Got tag response from unexpected command " + response
+                        + " for " + getLogId());
+                return null;
+            }
+            try {
+                checkAppendResponse(response);
+            } catch (MessagingException e) {
+                return e;
+            }
+            appended[index] = true;
+            Message message = messages[index];
+
+            /*
+             * If the server supports UIDPLUS, then along with the APPEND response it
+             * will return an APPENDUID response code, e.g.
+             *
+             * 11 OK [APPENDUID 2 238268] APPEND completed
+             *
+             * We can use the UID included in this response to update our records.
+             */
+            List<String> newUids = getAppendUids(response);
+            if (newUids != null && newUids.size() == 1) {
+                String newUid = newUids.get(0);
+                uidMap.put(message.getUid(), newUid);
+                message.setUid(newUid);
+            } else {
+                messagesWithoutUid.add(message);
+            }
+            return null;
+        }
+
+        /**
+         * Returns an {@link AppendFailedException} wrapping the failure if the server stored some
+         * of the leading messages, the failure itself otherwise.
+         */
+        private MessagingException getPartialAppendFailure(MessagingException failure,
+                boolean[] appended) {
+            int count = 0;
+            while (count < appended.length && appended[count]) {
+                count++;
+            }
+            return (count > 0) ? new AppendFailedException(count, failure) : failure;
+        }
+
+        private void checkAppendResponse(ImapResponse response) throws MessagingException {
+            if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
+                throw getAppendFailure(response);
+            }
+        }
+
+        /**
+         * Returns the exception for a rejected APPEND command. A {@code NO [TRYCREATE]} response
+         * means the folder doesn't exist (anymore).
+         */
+        private MessagingException getAppendFailure(ImapResponse response) {
+            if (response.size() > 1 && response.get(1) instanceof ImapList) {
+                ImapList responseCode = (ImapList) response.get(1);
+                if (!responseCode.isEmpty() &&
+                        ImapResponseParser.equalsIgnoreCase(responseCode.get(0), "TRYCREATE")) {
+                    mExists = false;
+                    return new FolderNotFoundException("Folder " + getName() +
+                            " doesn't exist; response: " + response.toString());
+                }
+            }
+            return new ImapException("Command: APPEND; response: " + response.toString(),
+                    response.getAlertText());
+        }
+
+        /**
+         * Returns the UIDs of an APPENDUID response code or {@code null} if the tagged response
+         * doesn't contain one.
+         */
+        private List<String> getAppendUids(ImapResponse response) {
+            if (response.size() > 1) {
+                Object responseList = response.get(1);
+
+                if (responseList instanceof ImapList) {
+                    ImapList appendList = (ImapList) responseList;
+                    if (appendList.size() >= 3 &&
+                            appendList.getString(0).equals("APPENDUID")) {
+
+                        String uidSet = appendList.getString(2);
+                        if (!StringUtils.isNullOrEmpty(uidSet)) {
+                            return ImapUtility.getImapSequenceValues(uidSet);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Serializes the message into the append buffer and returns the size of the literal.
+         * The buffer is reused for all messages of an append so each message is only serialized
+         * once. {@link #appendMessages(Message[])} releases it and deletes its temp file.
+         */
+        private long serializeForAppend(Message message) throws IOException, MessagingException {
+            if (mAppendBuffer == null) {
+                mAppendBuffer = new SpooledOutputStream(APPEND_BUFFER_THRESHOLD,
+                        BinaryTempFileBody.getTempDirectory());
+            }
+            mAppendBuffer.reset();
+            message.serializeTo(mAppendBuffer);
+            return mAppendBuffer.getSize();
+        }
+
+        /**
+         * Writes the message last passed to {@link #serializeForAppend(Message)}.
+         */
+        private void writeAppendLiteral() throws IOException {
+            mAppendBuffer.writeTo(mConnection.mOut);
+        }
+
         @Override
         public String getUidFromMessageId(Message message) throws MessagingException {
             try {
@@ -2319,7 +2801,7 @@ public class ImapStore extends Store {
      * A cacheable class that stores the details for a single IMAP connection.
      */
     public static class ImapConnection {
-        protected Socket mSocket;
+        protected ImapTransport mTransport;
         protected PeekableInputStream mIn;
         protected OutputStream mOut;
         protected ImapResponseParser mParser;
@@ -2328,6 +2810,14 @@ public class ImapStore extends Store {
 
         private ImapSettings mSettings;
 
+        // Only set while COMPRESS=DEFLATE is active
+        private Inflater mInflater;
+        private Deflater mDeflater;
+        private CountingInputStream mWireIn;
+        private CountingInputStream mPlainIn;
+        private CountingOutputStream mWireOut;
+        private CountingOutputStream mPlainOut;
+
         public ImapConnection(final ImapSettings settings) {
             this.mSettings = settings;
         }
@@ -2380,66 +2870,66 @@ public class ImapStore extends Store {
             boolean authSuccess = false;
 
             mNextCommandTag = 1;
-            try {
-                Security.setProperty("networkaddress.cache.ttl", "0");
-            } catch (Exception e) {
-                Log.w(K9.LOG_TAG, "Could not set DNS ttl to 0 for " + getLogId(), e);
-            }
-
-
-            try {
-                Security.setProperty("networkaddress.cache.negative.ttl", "0");
-            } catch (Exception e) {
-                Log.w(K9.LOG_TAG, "Could not set DNS negative ttl to 0 for " + getLogId(), e);
-            }
 
             try {
+                long openStart = System.nanoTime();
                 ConnectionSecurity connectionSecurity = mSettings.getConnectionSecurity();
+                boolean useNioTransport = sUseNioTransport &&
+                        connectionSecurity == ConnectionSecurity.SSL_TLS_REQUIRED;
 
                 // Try all IPv4 and IPv6 addresses of the host
-                InetAddress[] addresses = InetAddress.getAllByName(mSettings.getHost());
-                for (int i = 0; i < addresses.length; i++) {
-                    try {
-                        if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
-                            Log.d(K9.LOG_TAG, "Connecting to " + mSettings.getHost() + " as " +
-                                    addresses[i]);
-                        }
-
-                        SocketAddress socketAddress = new InetSocketAddress(addresses[i],
-                                mSettings.getPort());
-
-                        if (connectionSecurity == ConnectionSecurity.SSL_TLS_REQUIRED) {
-                            SSLContext sslContext = SSLContext.getInstance("TLS");
-                            sslContext
-                                    .init(null,
-                                            new TrustManager[] { TrustManagerFactory.get(
-                                                    mSettings.getHost(),
-                                                    mSettings.getPort()) },
-                                            new SecureRandom());
-                            mSocket = TrustedSocketFactory.createSocket(sslContext);
-                        } else {
-                            mSocket = new Socket();
-                        }
+                InetAddress[] addresses = HostResolver.resolve(mSettings.getHost());
+                Socket socket;
+                try {
+                    socket = HappyEyeballsConnector.connect(useNioTransport ?
+                            NioSslImapTransport.SOCKET_FACTORY : SocketFactory.getDefault(),
+                            addresses, mSettings.getPort(), SOCKET_CONNECT_TIMEOUT,
+                            sSocketBufferSize);
+                } catch (IOException e) {
+                    // The host might have moved, look it up again next time
+                    HostResolver.invalidate(mSettings.getHost());
+                    if (e instanceof SocketException) {
+                        throw new MessagingException("Cannot connect to host", e);
+                    }
+                    throw e;
+                }
+                if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
+                    Log.d(K9.LOG_TAG, "Connected to " + mSettings.getHost() + " as " +
+                            socket.getInetAddress() + " for " + getLogId());
+                }
 
-                        mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
+                // Closed by close() if setting up TLS fails
+                mTransport = new SocketImapTransport(socket);
+                // Also applies to the TLS handshake
+                setReadTimeout(Store.SOCKET_READ_TIMEOUT);
 
-                        // Successfully connected to the server; don't try any other addresses
-                        break;
-                    } catch (SocketException e) {
-                        if (i < (addresses.length - 1)) {
-                            // There are still other addresses for that host to try
-                            continue;
-                        }
-                        throw new MessagingException("Cannot connect to host", e);
+                if (connectionSecurity == ConnectionSecurity.SSL_TLS_REQUIRED) {
+                    SSLContext sslContext = getSSLContext();
+                    if (useNioTransport) {
+                        NioSslImapTransport transport = NioSslImapTransport.open(
+                                socket.getChannel(), Store.SOCKET_READ_TIMEOUT,
+                                TrustedSocketFactory.createSSLEngine(sslContext,
+                                        mSettings.getHost(), mSettings.getPort()));
+                        mTransport = transport;
+                        startHandshake(transport);
+                    } else {
+                        // Layer TLS over the connected socket so the session is cached for the
+                        // host name rather than the address
+                        SSLSocket sslSocket = (SSLSocket) TrustedSocketFactory.createSocket(
+                                sslContext, socket, mSettings.getHost(), mSettings.getPort(),
+                                true);
+                        mTransport = new SocketImapTransport(sslSocket);
+                        startHandshake(sslSocket);
                     }
                 }
 
                 setReadTimeout(Store.SOCKET_READ_TIMEOUT);
+                long connected = System.nanoTime();
 
-                mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
-                                              1024));
+                mIn = new PeekableInputStream(new BufferedInputStream(mTransport.getInputStream(),
+                                              sInputBufferSize));
                 mParser = new ImapResponseParser(mIn);
-                mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
+                mOut = new BufferedOutputStream(mTransport.getOutputStream(), sOutputBufferSize);
 
                 capabilities.clear();
                 ImapResponse nullResponse = mParser.readResponse();
@@ -2450,34 +2940,51 @@ public class ImapStore extends Store {
                 nullResponses.add(nullResponse);
                 receiveCapabilities(nullResponses);
 
+                ImapDiscoveryCache discoveryCache = mSettings.getDiscoveryCache();
+                String discoveryKey = ImapDiscovery.getKey(mSettings.getHost(),
+                        mSettings.getPort(), mSettings.getUsername());
+                String fingerprint = ImapDiscovery.getFingerprint(nullResponse);
+                ImapDiscovery discovery = getCachedDiscovery(discoveryCache, discoveryKey,
+                        fingerprint);
+                boolean startTls =
+                        mSettings.getConnectionSecurity() == ConnectionSecurity.STARTTLS_REQUIRED;
+                boolean cachedCapabilities = false;
+
                 if (!hasCapability(CAPABILITY_CAPABILITY)) {
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Did not get capabilities in banner, requesting CAPABILITY for " + getLogId());
-                    List<ImapResponse> responses = receiveCapabilities(executeSimpleCommand(COMMAND_CAPABILITY));
-                    if (responses.size() != 2) {
-                        throw new MessagingException("Invalid CAPABILITY response received");
+                    if (discovery != null && !startTls) {
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Using cached capabilities for " + getLogId());
+                        capabilities.addAll(discovery.getCapabilities());
+                        cachedCapabilities = true;
+                    } else {
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Did not get capabilities in banner, requesting CAPABILITY for " + getLogId());
+                        List<ImapResponse> responses = receiveCapabilities(executeSimpleCommand(COMMAND_CAPABILITY));
+                        if (responses.size() != 2) {
+                            throw new MessagingException("Invalid CAPABILITY response received");
+                        }
                     }
                 }
 
-                if (mSettings.getConnectionSecurity() == ConnectionSecurity.STARTTLS_REQUIRED) {
+                if (startTls) {
 
                     if (hasCapability("STARTTLS")) {
                         // STARTTLS
                         executeSimpleCommand("STARTTLS");
 
-                        SSLContext sslContext = SSLContext.getInstance("TLS");
-                        sslContext.init(null,
-                                new TrustManager[] { TrustManagerFactory.get(
-                                        mSettings.getHost(),
-                                        mSettings.getPort()) },
-                                new SecureRandom());
-                        mSocket = TrustedSocketFactory.createSocket(sslContext, mSocket,
-                                mSettings.getHost(), mSettings.getPort(), true);
-                        mSocket.setSoTimeout(Store.SOCKET_READ_TIMEOUT);
-                        mIn = new PeekableInputStream(new BufferedInputStream(mSocket
-                                                      .getInputStream(), 1024));
+                        SSLContext sslContext = getSSLContext();
+                        Socket plainSocket = ((SocketImapTransport) mTransport).getSocket();
+                        SSLSocket sslSocket = (SSLSocket) TrustedSocketFactory.createSocket(
+                                sslContext, plainSocket, mSettings.getHost(), mSettings.getPort(),
+                                true);
+                        mTransport = new SocketImapTransport(sslSocket);
+                        mTransport.setSoTimeout(Store.SOCKET_READ_TIMEOUT);
+                        startHandshake(sslSocket);
+                        mIn = new PeekableInputStream(new BufferedInputStream(mTransport
+                                                      .getInputStream(), sInputBufferSize));
                         mParser = new ImapResponseParser(mIn);
-                        mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
+                        mOut = new BufferedOutputStream(mTransport.getOutputStream(),
+                                sOutputBufferSize);
                         // Per RFC 2595 (3.1):  Once TLS has been started, reissue CAPABILITY command
                         if (K9.DEBUG)
                             Log.i(K9.LOG_TAG, "Updating capabilities after STARTTLS for " + getLogId());
@@ -2500,74 +3007,74 @@ public class ImapStore extends Store {
                     }
                 }
 
-                switch (mSettings.getAuthType()) {
-                case CRAM_MD5:
-                    if (hasCapability(CAPABILITY_AUTH_CRAM_MD5)) {
-                        authCramMD5();
-                    } else {
-                        throw new MessagingException(
-                                "Server doesn't support encrypted passwords using CRAM-MD5.");
-                    }
-                    break;
+                // Cached capabilities can only be checked by authenticating with them
+                if (discovery != null && !cachedCapabilities &&
+                        !discovery.getCapabilities().equals(capabilities)) {
+                    if (K9.DEBUG)
+                        Log.i(K9.LOG_TAG, "Capabilities changed, dropping cached discovery for " + getLogId());
+                    discovery = null;
+                }
+                Set<String> unauthenticatedCapabilities = new HashSet<String>(capabilities);
 
-                case PLAIN:
-                    if (hasCapability(CAPABILITY_AUTH_PLAIN)) {
-                        saslAuthPlain();
-                    } else if (!hasCapability(CAPABILITY_LOGINDISABLED)) {
-                        login();
-                    } else {
+                try {
+                    switch (mSettings.getAuthType()) {
+                    case CRAM_MD5:
+                        if (hasCapability(CAPABILITY_AUTH_CRAM_MD5)) {
+                            authCramMD5();
+                        } else {
+                            throw new MessagingException(
+                                    "Server doesn't support encrypted passwords using CRAM-MD5.");
+                        }
+                        break;
+
+                    case PLAIN:
+                        if (hasCapability(CAPABILITY_AUTH_PLAIN)) {
+                            saslAuthPlain();
+                        } else if (!hasCapability(CAPABILITY_LOGINDISABLED)) {
+                            login();
+                        } else {
+                            throw new MessagingException(
+                                    "Server doesn't support unencrypted passwords using AUTH=PLAIN and LOGIN is disabled.");
+                        }
+                        break;
+
+                    default:
                         throw new MessagingException(
-                                "Server doesn't support unencrypted passwords using AUTH=PLAIN and LOGIN is disabled.");
+                                "Unhandled authentication method found in the server settings (bug).");
                     }
-                    break;
-
-                default:
-                    throw new MessagingException(
-                            "Unhandled authentication method found in the server settings (bug).");
+                } catch (MessagingException e) {
+                    if (cachedCapabilities) {
+                        // The cached capabilities may be outdated, verify them next time
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Authentication failed, dropping cached discovery for " + getLogId());
+                        discoveryCache.remove(discoveryKey);
+                    }
+                    throw e;
                 }
                 authSuccess = true;
                 if (K9.DEBUG) {
                     Log.d(K9.LOG_TAG, CAPABILITY_COMPRESS_DEFLATE + " = " + hasCapability(CAPABILITY_COMPRESS_DEFLATE));
                 }
-                // if (hasCapability(CAPABILITY_COMPRESS_DEFLATE)) {
-                // ConnectivityManager connectivityManager =
-                // (ConnectivityManager)K9.app.getSystemService(Context.CONNECTIVITY_SERVICE);
-                // boolean useCompression = true;
-                //
-                // NetworkInfo netInfo =
-                // connectivityManager.getActiveNetworkInfo();
-                // if (netInfo != null) {
-                // int type = netInfo.getType();
-                // if (K9.DEBUG)
-                // Log.d(K9.LOG_TAG, "On network type " + type);
-                // useCompression = mSettings.useCompression(type);
-                //
-                // }
-                // if (K9.DEBUG)
-                // Log.d(K9.LOG_TAG, "useCompression " + useCompression);
-                // if (useCompression) {
-                // try {
-                // executeSimpleCommand(COMMAND_COMPRESS_DEFLATE);
-                // Inflater inf = new Inflater(true);
-                // InflaterInputStream zInputStream = new
-                // InflaterInputStream(mSocket.getInputStream(), inf);
-                // mIn = new PeekableInputStream(new
-                // BufferedInputStream(zInputStream, 1024));
-                // mParser = new ImapResponseParser(mIn);
-                // ZOutputStream zOutputStream = new
-                // ZOutputStream(mSocket.getOutputStream(), JZlib.Z_BEST_SPEED,
-                // true);
-                // mOut = new BufferedOutputStream(zOutputStream, 1024);
-                // zOutputStream.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
-                // if (K9.DEBUG) {
-                // Log.i(K9.LOG_TAG, "Compression enabled for " + getLogId());
-                // }
-                // } catch (Exception e) {
-                // Log.e(K9.LOG_TAG, "Unable to negotiate compression", e);
-                // }
-                // }
-                // }
+                if (hasCapability(CAPABILITY_COMPRESS_DEFLATE) && shouldUseCompression()) {
+                    try {
+                        enableCompression();
+                    } catch (MessagingException e) {
+                        // The server refused, continue without compression.
+                        Log.e(K9.LOG_TAG, "Unable to negotiate compression", e);
+                    }
+                }
 
+                boolean detectPrefix = (mSettings.getPathPrefix() == null);
+                if (discovery != null) {
+                    if (detectPrefix && discovery.getPathPrefix() != null) {
+                        mSettings.setPathPrefix(discovery.getPathPrefix());
+                        mSettings.setPathDelimeter(discovery.getPathDelimiter());
+                        mSettings.setCombinedPrefix(null);
+                    } else if (mSettings.getPathDelimeter() == null) {
+                        mSettings.setPathDelimeter(discovery.getPathDelimiter());
+                        mSettings.setCombinedPrefix(null);
+                    }
+                }
 
                 if (K9.DEBUG)
                     Log.d(K9.LOG_TAG, "NAMESPACE = " + hasCapability(CAPABILITY_NAMESPACE)
@@ -2626,6 +3133,20 @@ public class ImapStore extends Store {
                     }
                 }
 
+                if (discoveryCache != null) {
+                    // Keep a cached prefix if it's configured for this connection
+                    String pathPrefix = detectPrefix ? mSettings.getPathPrefix() :
+                            (discovery != null) ? discovery.getPathPrefix() : null;
+                    ImapDiscovery current = new ImapDiscovery(fingerprint,
+                            unauthenticatedCapabilities, pathPrefix,
+                            mSettings.getPathDelimeter(), System.currentTimeMillis());
+                    if (!current.equals(discovery)) {
+                        discoveryCache.put(discoveryKey, current);
+                    }
+                }
+
+                mSettings.getConnectionStatistics().add(1, (connected - openStart) / 1000000,
+                        (System.nanoTime() - connected) / 1000000);
 
             } catch (SSLException e) {
                 throw new CertificateValidationException(e.getMessage(), e);
@@ -2649,7 +3170,69 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Returns the cached discovery results of the server or {@code null} if there are none,
+         * they expired or the server greeted with a different fingerprint.
+         */
+        private ImapDiscovery getCachedDiscovery(ImapDiscoveryCache discoveryCache, String key,
+                String fingerprint) {
+            if (discoveryCache == null) {
+                return null;
+            }
+            ImapDiscovery discovery = discoveryCache.get(key);
+            if (discovery != null && !discovery.getFingerprint().equals(fingerprint)) {
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Server greeting changed, dropping cached discovery for " + getLogId());
+                discoveryCache.remove(key);
+                discovery = null;
+            } else if (discovery != null && discovery.isExpired(System.currentTimeMillis())) {
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Cached discovery expired for " + getLogId());
+                discoveryCache.remove(key);
+                discovery = null;
+            }
+            return discovery;
+        }
+
+        /**
+         * Returns the cached SSL context for the server, so that TLS sessions can be resumed by
+         * later connections.
+         */
+        private SSLContext getSSLContext() throws GeneralSecurityException {
+            return SSLContextCache.get(mSettings.getHost(), mSettings.getPort(),
+                    TrustManagerFactory.get(mSettings.getHost(), mSettings.getPort()));
+        }
+
+        private void startHandshake(SSLSocket socket) throws IOException {
+            long startTime = System.currentTimeMillis();
+            long start = System.nanoTime();
+            socket.startHandshake();
+            recordHandshake(socket.getSession(), startTime, start);
+        }
+
+        private void startHandshake(NioSslImapTransport transport) throws IOException {
+            long startTime = System.currentTimeMillis();
+            long start = System.nanoTime();
+            transport.startHandshake();
+            recordHandshake(transport.getSession(), startTime, start);
+        }
+
+        private void recordHandshake(SSLSession session, long startTime, long start) {
+            long durationMillis = (System.nanoTime() - start) / 1000000;
+            SSLContextCache.getHandshakeStatistics().add(session, startTime, durationMillis);
+            if (K9.DEBUG) {
+                Log.d(K9.LOG_TAG, "TLS handshake for " + getLogId() + " took " + durationMillis +
+                        " ms" + (session.getCreationTime() < startTime ? " (resumed)" : ""));
+            }
+        }
+
         protected void login() throws IOException, MessagingException {
+            if (!isAscii(mSettings.getUsername()) || !isAscii(mSettings.getPassword())) {
+                // Quoted strings can't contain 8-bit characters
+                loginWithLiterals();
+                return;
+            }
+
             /*
              * Use quoted strings which permit spaces and quotes. (Using IMAP
              * string literals would be better, but some servers are broken
@@ -2671,6 +3254,31 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Sends the LOGIN command with the username and password as UTF-8 encoded synchronizing
+         * literals.
+         */
+        private void loginWithLiterals() throws IOException, MessagingException {
+            byte[] username = mSettings.getUsername().getBytes("UTF-8");
+            byte[] password = mSettings.getPassword().getBytes("UTF-8");
+            String command = "LOGIN";
+            String tag = sendCommand(command + " {" + username.length + "}", true);
+            readContinuationResponse(tag);
+            mOut.write(username);
+            mOut.write((" {" + password.length + "}\r\n").getBytes("US-ASCII"));
+            mOut.flush();
+            readContinuationResponse(tag);
+            mOut.write(password);
+            mOut.write('\r');
+            mOut.write('\n');
+            mOut.flush();
+            try {
+                receiveCapabilities(readStatusResponse(tag, command, null));
+            } catch (MessagingException e) {
+                throw new AuthenticationFailedException(e.getMessage());
+            }
+        }
+
         protected void authCramMD5() throws MessagingException, IOException {
             String command = "AUTHENTICATE CRAM-MD5";
             String tag = sendCommand(command, false);
@@ -2678,7 +3286,7 @@ public class ImapStore extends Store {
             if (response.size() != 1 || !(response.get(0) instanceof String)) {
                 throw new MessagingException("Invalid Cram-MD5 nonce received");
             }
-            byte[] b64Nonce = response.getString(0).getBytes();
+            byte[] b64Nonce = response.getString(0).getBytes("US-ASCII");
             byte[] b64CRAM = Authentication.computeCramMd5Bytes(
                     mSettings.getUsername(), mSettings.getPassword(), b64Nonce);
 
@@ -2698,7 +3306,7 @@ public class ImapStore extends Store {
             String tag = sendCommand(command, false);
             readContinuationResponse(tag);
             mOut.write(Base64.encodeBase64(("\000" + mSettings.getUsername()
-                    + "\000" + mSettings.getPassword()).getBytes()));
+                    + "\000" + mSettings.getPassword()).getBytes("UTF-8")));
             mOut.write('\r');
             mOut.write('\n');
             mOut.flush();
@@ -2763,9 +3371,9 @@ public class ImapStore extends Store {
         }
 
         protected void setReadTimeout(int millis) throws SocketException {
-            Socket sock = mSocket;
-            if (sock != null) {
-                sock.setSoTimeout(millis);
+            ImapTransport transport = mTransport;
+            if (transport != null) {
+                transport.setSoTimeout(millis);
             }
         }
 
@@ -2776,12 +3384,21 @@ public class ImapStore extends Store {
             return capabilities.contains(CAPABILITY_IDLE);
         }
 
+        /**
+         * Returns whether a literal of the given size can be sent without waiting for a
+         * command continuation request (LITERAL+ / LITERAL-, RFC 7888).
+         */
+        public boolean canSendNonSynchronizingLiteral(long size) {
+            return hasCapability(CAPABILITY_LITERAL_PLUS) ||
+                    (hasCapability(CAPABILITY_LITERAL_MINUS) && size <= LITERAL_MINUS_MAX_SIZE);
+        }
+
         protected boolean hasCapability(String capability) {
             return capabilities.contains(capability.toUpperCase(Locale.US));
         }
 
         public boolean isOpen() {
-            return (mIn != null && mOut != null && mSocket != null && mSocket.isConnected() && !mSocket.isClosed());
+            return (mIn != null && mOut != null && mTransport != null && mTransport.isConnected());
         }
 
         public void close() {
@@ -2794,10 +3411,100 @@ public class ImapStore extends Store {
 //            }
             IOUtils.closeQuietly(mIn);
             IOUtils.closeQuietly(mOut);
-            IOUtils.closeQuietly(mSocket);
+            if (mTransport != null) {
+                mTransport.close();
+            }
             mIn = null;
             mOut = null;
-            mSocket = null;
+            mTransport = null;
+
+            if (mWireIn != null) {
+                CompressionStatistics statistics = new CompressionStatistics();
+                addCompressionStatistics(statistics);
+                mSettings.getCompressionStatistics().add(statistics);
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Compression for " + getLogId() + ": " + statistics);
+                }
+                mInflater.end();
+                mDeflater.end();
+                mInflater = null;
+                mDeflater = null;
+                mWireIn = null;
+                mPlainIn = null;
+                mWireOut = null;
+                mPlainOut = null;
+            }
+        }
+
+        /**
+         * Adds the byte counts of this connection to the given statistics if it uses
+         * COMPRESS=DEFLATE.
+         */
+        void addCompressionStatistics(CompressionStatistics statistics) {
+            if (mWireIn != null) {
+                statistics.add(mPlainIn.getCount(), mWireIn.getCount(), mPlainOut.getCount(),
+                        mWireOut.getCount());
+            }
+        }
+
+        /**
+         * Returns whether COMPRESS=DEFLATE should be used on the active network.
+         */
+        private boolean shouldUseCompression() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+                // DeflaterOutputStream supports sync flush starting with API level 19
+                return false;
+            }
+
+            int type = -1;
+            if (K9.app != null) {
+                try {
+                    ConnectivityManager connectivityManager =
+                        (ConnectivityManager)K9.app.getSystemService(Context.CONNECTIVITY_SERVICE);
+                    NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
+                    if (netInfo != null) {
+                        type = netInfo.getType();
+                    }
+                } catch (SecurityException e) {
+                    Log.w(K9.LOG_TAG, "Unable to determine network type", e);
+                }
+            }
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "On network type " + type);
+
+            boolean useCompression = mSettings.useCompression(type);
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "useCompression " + useCompression);
+            return useCompression;
+        }
+
+        /**
+         * Sends COMPRESS DEFLATE and replaces the streams by raw deflate streams (RFC 4978). The
+         * output is sync flushed whenever the connection is flushed.
+         */
+        private void enableCompression() throws IOException, MessagingException {
+            executeSimpleCommand(COMMAND_COMPRESS_DEFLATE);
+
+            mInflater = new Inflater(true);
+            mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+            mWireIn = new CountingInputStream(mTransport.getInputStream());
+            mPlainIn = new CountingInputStream(new InflaterInputStream(mWireIn, mInflater, 1024) {
+                @Override
+                public int available() {
+                    // InflaterInputStream reports available data until the end of the stream,
+                    // which would make BufferedInputStream block waiting for more.
+                    return 0;
+                }
+            });
+            mIn = new PeekableInputStream(new BufferedInputStream(mPlainIn, sInputBufferSize));
+            mParser = new ImapResponseParser(mIn);
+            mWireOut = new CountingOutputStream(mTransport.getOutputStream());
+            mPlainOut = new CountingOutputStream(
+                    new DeflaterOutputStream(mWireOut, mDeflater, 1024, true));
+            mOut = new BufferedOutputStream(mPlainOut, sOutputBufferSize);
+            if (K9.DEBUG) {
+                Log.i(K9.LOG_TAG, "Compression enabled for " + getLogId());
+            }
         }
 
         public ImapResponse readResponse() throws IOException, MessagingException {
@@ -2818,7 +3525,7 @@ public class ImapStore extends Store {
         }
 
         public void sendContinuation(String continuation) throws IOException {
-            mOut.write(continuation.getBytes());
+            mOut.write(continuation.getBytes("US-ASCII"));
             mOut.write('\r');
             mOut.write('\n');
             mOut.flush();
@@ -2828,14 +3535,69 @@ public class ImapStore extends Store {
 
         }
 
+        /**
+         * Sends the data of a non-synchronizing literal announced by the previous command,
+         * terminates the command line and flushes the output stream.
+         */
+        public void sendLiteral(byte[] literal) throws IOException {
+            try {
+                mOut.write(literal);
+                mOut.write('\r');
+                mOut.write('\n');
+                mOut.flush();
+            } catch (IOException ioe) {
+                close();
+                throw ioe;
+            }
+
+            if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP)
+                Log.v(K9.LOG_TAG, getLogId() + ">>> [" + literal.length + " byte literal]");
+        }
+
         public String sendCommand(String command, boolean sensitive)
+        throws MessagingException, IOException {
+            return sendCommand(command, sensitive, true);
+        }
+
+        /**
+         * Sends a command to the server.
+         *
+         * @param flush
+         *         {@code false} if more data (e.g. a non-synchronizing literal) follows the
+         *         command and the output stream will be flushed by the caller.
+         */
+        public String sendCommand(String command, boolean sensitive, boolean flush)
+        throws MessagingException, IOException {
+            return sendCommand(null, command, sensitive, flush);
+        }
+
+        /**
+         * Returns the tag for a command sent later with
+         * {@link #sendCommand(String, String, boolean, boolean)}, e.g. to register the command
+         * before another thread can read its response. The connection must be open.
+         */
+        public String allocateTag() {
+            return Integer.toString(mNextCommandTag++);
+        }
+
+        /**
+         * Sends a command with a tag returned by {@link #allocateTag()}.
+         *
+         * @param tag
+         *         The tag or {@code null} to allocate one.
+         */
+        public String sendCommand(String tag, String command, boolean sensitive, boolean flush)
         throws MessagingException, IOException {
             try {
                 open();
-                String tag = Integer.toString(mNextCommandTag++);
+                if (tag == null) {
+                    tag = allocateTag();
+                }
                 String commandToSend = tag + " " + command + "\r\n";
-                mOut.write(commandToSend.getBytes());
-                mOut.flush();
+                mOut.write(commandToSend.getBytes("US-ASCII"));
+                if (flush) {
+                    mOut.flush();
+                }
 
                 if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
                     if (sensitive && !K9.DEBUG_SENSITIVE) {
@@ -0,0 +1,81 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.util.Locale;
+
+/**
+ * Byte counts of IMAP connections using COMPRESS=DEFLATE (RFC 4978).
+ *
+ * <p>
+ * "Plain" counts are the bytes seen by the protocol handler, "wire" counts are the compressed
+ * bytes sent over the socket. An instance can be used for a single connection or to sum up
+ * several of them.
+ * </p>
+ */
+public class CompressionStatistics {
+    private long mPlainBytesRead;
+    private long mWireBytesRead;
+    private long mPlainBytesWritten;
+    private long mWireBytesWritten;
+
+    public synchronized void add(long plainBytesRead, long wireBytesRead, long plainBytesWritten,
+            long wireBytesWritten) {
+        mPlainBytesRead += plainBytesRead;
+        mWireBytesRead += wireBytesRead;
+        mPlainBytesWritten += plainBytesWritten;
+        mWireBytesWritten += wireBytesWritten;
+    }
+
+    public synchronized void add(CompressionStatistics statistics) {
+        add(statistics.getPlainBytesRead(), statistics.getWireBytesRead(),
+                statistics.getPlainBytesWritten(), statistics.getWireBytesWritten());
+    }
+
+    public synchronized void reset() {
+        mPlainBytesRead = 0;
+        mWireBytesRead = 0;
+        mPlainBytesWritten = 0;
+        mWireBytesWritten = 0;
+    }
+
+    public synchronized long getPlainBytesRead() {
+        return mPlainBytesRead;
+    }
+
+    public synchronized long getWireBytesRead() {
+        return mWireBytesRead;
+    }
+
+    public synchronized long getPlainBytesWritten() {
+        return mPlainBytesWritten;
+    }
+
+    public synchronized long getWireBytesWritten() {
+        return mWireBytesWritten;
+    }
+
+    /**
+     * Returns the number of bytes that didn't need to be transferred.
+     */
+    public synchronized long getBytesSaved() {
+        return (mPlainBytesRead + mPlainBytesWritten) - (mWireBytesRead + mWireBytesWritten);
+    }
+
+    /**
+     * Returns the ratio of wire bytes to plain bytes, e.g. 0.25 if the data was compressed to a
+     * quarter of its size, or 1 if nothing was transferred.
+     */
+    public synchronized double getRatio() {
+        long plain = mPlainBytesRead + mPlainBytesWritten;
+        if (plain == 0) {
+            return 1;
+        }
+        return (double) (mWireBytesRead + mWireBytesWritten) / plain;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "read %d/%d, written %d/%d bytes (wire/plain), " +
+                "ratio %.2f, %d bytes saved", mWireBytesRead, mPlainBytesRead, mWireBytesWritten,
+                mPlainBytesWritten, getRatio(), getBytesSaved());
+    }
+}
@@ -0,0 +1,67 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the counters of an {@link ImapConnectionPool}.
+ */
+public class ConnectionPoolStatistics {
+    private final long mCheckouts;
+    private final long mReused;
+    private final long mValidations;
+    private final long mValidationFailures;
+    private final long mValidationMillis;
+    private final long mEvicted;
+
+    ConnectionPoolStatistics(long checkouts, long reused, long validations,
+            long validationFailures, long validationMillis, long evicted) {
+        mCheckouts = checkouts;
+        mReused = reused;
+        mValidations = validations;
+        mValidationFailures = validationFailures;
+        mValidationMillis = validationMillis;
+        mEvicted = evicted;
+    }
+
+    /** Returns the number of connections requested from the pool. */
+    public long getCheckouts() {
+        return mCheckouts;
+    }
+
+    /** Returns the number of requests served with a pooled connection. */
+    public long getReused() {
+        return mReused;
+    }
+
+    /** Returns the share of requests served with a pooled connection. */
+    public double getReuseRate() {
+        return (mCheckouts == 0) ? 0 : (double) mReused / mCheckouts;
+    }
+
+    /** Returns the number of NOOP commands sent to check idle connections. */
+    public long getValidations() {
+        return mValidations;
+    }
+
+    /** Returns the number of idle connections that turned out to be broken. */
+    public long getValidationFailures() {
+        return mValidationFailures;
+    }
+
+    /** Returns the total time spent checking idle connections. */
+    public long getValidationMillis() {
+        return mValidationMillis;
+    }
+
+    /** Returns the number of connections closed because they were idle too long or not needed. */
+    public long getEvicted() {
+        return mEvicted;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d checkouts, %.0f%% reused, %d validations " +
+                "(%d failed, %d ms), %d evicted", mCheckouts, getReuseRate() * 100,
+                mValidations, mValidationFailures, mValidationMillis, mEvicted);
+    }
+}
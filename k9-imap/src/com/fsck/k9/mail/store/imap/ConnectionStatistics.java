@@ -0,0 +1,56 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.util.Locale;
+
+/**
+ * Time spent setting up IMAP connections.
+ *
+ * <p>
+ * "Connect" covers the host lookup, the TCP connection and the TLS handshake of
+ * {@link com.fsck.k9.mail.ConnectionSecurity#SSL_TLS_REQUIRED} connections, "login" covers
+ * everything from the server greeting to the end of the discovery, i.e. STARTTLS,
+ * authentication, compression and the namespace lookup. Only connections that were opened
+ * successfully are counted.
+ * </p>
+ */
+public class ConnectionStatistics {
+    private long mConnections;
+    private long mConnectMillis;
+    private long mLoginMillis;
+
+    public synchronized void add(long connections, long connectMillis, long loginMillis) {
+        mConnections += connections;
+        mConnectMillis += connectMillis;
+        mLoginMillis += loginMillis;
+    }
+
+    public synchronized void add(ConnectionStatistics statistics) {
+        add(statistics.getConnections(), statistics.getConnectMillis(),
+                statistics.getLoginMillis());
+    }
+
+    public synchronized void reset() {
+        mConnections = 0;
+        mConnectMillis = 0;
+        mLoginMillis = 0;
+    }
+
+    /** Returns the number of connections opened. */
+    public synchronized long getConnections() {
+        return mConnections;
+    }
+
+    public synchronized long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    public synchronized long getLoginMillis() {
+        return mLoginMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d connections, connect %d ms, login %d ms",
+                mConnections, mConnectMillis, mLoginMillis);
+    }
+}
@@ -0,0 +1,55 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct {@link ByteBuffer}s.
+ *
+ * <p>
+ * Allocating direct buffers is expensive and their memory is only freed when they are garbage
+ * collected, so the buffers of closed connections are kept for the next ones.
+ * </p>
+ */
+class DirectBufferPool {
+    /** Maximum number of buffers kept in the pool. */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> sBuffers =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private static final AtomicInteger sSize = new AtomicInteger();
+
+    private DirectBufferPool() {
+    }
+
+    /**
+     * Returns a cleared direct buffer with at least the given capacity.
+     */
+    static ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = sBuffers.poll();
+        if (buffer != null) {
+            sSize.decrementAndGet();
+            if (buffer.capacity() >= capacity) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        if (sSize.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            sBuffers.offer(buffer);
+        } else {
+            sSize.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+
+/**
+ * Connects to the first reachable address of a host with staggered parallel attempts ("Happy
+ * Eyeballs", RFC 8305).
+ *
+ * <p>
+ * The first attempt is started immediately. Every {@link #ATTEMPT_DELAY} milliseconds, or as
+ * soon as an attempt fails, the next address is tried without giving up on the running
+ * attempts. The first socket to connect is returned and all other attempts are aborted. An
+ * unreachable address, e.g. a broken IPv6 route on a mobile network, thus only delays the
+ * connection by the attempt delay instead of the full connect timeout.
+ * </p>
+ */
+public class HappyEyeballsConnector {
+    /** Milliseconds to wait for an attempt before starting the next one. */
+    private static final long ATTEMPT_DELAY = 250;
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ImapConnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private HappyEyeballsConnector() {
+    }
+
+    /**
+     * Returns a socket connected to one of the addresses.
+     *
+     * @param socketFactory
+     *         Creates the unconnected sockets.
+     * @param connectTimeout
+     *         Connect timeout of each attempt.
+     * @param socketBufferSize
+     *         Size of the kernel send and receive buffers or 0 to use the system default.
+     *
+     * @throws IOException
+     *         The exception of the last failed attempt if no address could be reached.
+     */
+    public static Socket connect(SocketFactory socketFactory, InetAddress[] addresses, int port,
+            final int connectTimeout, final int socketBufferSize) throws IOException {
+        if (addresses.length == 0) {
+            throw new IOException("No addresses to connect to");
+        }
+
+        CompletionService<Socket> attempts = new ExecutorCompletionService<Socket>(sExecutor);
+        List<Socket> sockets = new ArrayList<Socket>(addresses.length);
+        List<Future<Socket>> futures = new ArrayList<Future<Socket>>(addresses.length);
+        Socket connected = null;
+        IOException lastException = null;
+        try {
+            int next = 0;
+            int running = 0;
+            while (connected == null) {
+                if (running == 0 && next == addresses.length) {
+                    break;
+                }
+
+                if (running == 0) {
+                    // Nothing to wait for
+                    futures.add(startAttempt(attempts, socketFactory, sockets, addresses[next++],
+                            port, connectTimeout, socketBufferSize));
+                    running++;
+                }
+
+                Future<Socket> done;
+                if (next < addresses.length) {
+                    done = attempts.poll(ATTEMPT_DELAY, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        futures.add(startAttempt(attempts, socketFactory, sockets,
+                                addresses[next++], port, connectTimeout, socketBufferSize));
+                        running++;
+                        continue;
+                    }
+                } else {
+                    done = attempts.take();
+                }
+                running--;
+
+                try {
+                    connected = done.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    lastException = (cause instanceof IOException) ? (IOException) cause :
+                            new IOException(cause.toString());
+                    if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
+                        Log.d(K9.LOG_TAG, "Connect attempt failed: " + cause);
+                    }
+                    if (next < addresses.length) {
+                        // Don't wait for the attempt delay after a failure
+                        futures.add(startAttempt(attempts, socketFactory, sockets,
+                                addresses[next++], port, connectTimeout, socketBufferSize));
+                        running++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while connecting");
+        } finally {
+            // Closing the sockets aborts pending connects
+            for (Socket socket : sockets) {
+                if (socket != connected) {
+                    IOUtils.closeQuietly(socket);
+                }
+            }
+            for (Future<Socket> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (connected == null) {
+            throw lastException;
+        }
+        return connected;
+    }
+
+    private static Future<Socket> startAttempt(CompletionService<Socket> attempts,
+            SocketFactory socketFactory, List<Socket> sockets, InetAddress address,
+            final int port, final int connectTimeout, final int socketBufferSize)
+            throws IOException {
+        if (K9.DEBUG && K9.DEBUG_PROTOCOL_IMAP) {
+            Log.d(K9.LOG_TAG, "Connecting to " + address);
+        }
+
+        final Socket socket = socketFactory.createSocket();
+        sockets.add(socket);
+        final InetSocketAddress socketAddress = new InetSocketAddress(address, port);
+        return attempts.submit(new Callable<Socket>() {
+            @Override
+            public Socket call() throws IOException {
+                return SocketImapTransport.connect(socket, socketAddress, connectTimeout,
+                        socketBufferSize).getSocket();
+            }
+        });
+    }
+}
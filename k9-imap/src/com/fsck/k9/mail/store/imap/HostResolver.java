@@ -0,0 +1,97 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Short-lived cache of host name lookups.
+ *
+ * <p>
+ * Connections opened in quick succession, e.g. by a sync and its folder operations, share one
+ * lookup. The lifetime is short enough to pick up address changes after the device switched
+ * networks; entries are also dropped when no address of the host could be reached.
+ * </p>
+ */
+public class HostResolver {
+    /** Milliseconds a lookup is reused. */
+    private static final long CACHE_TTL = 60 * 1000;
+
+    private static final Map<String, Entry> sCache = new HashMap<String, Entry>();
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long expires;
+
+        Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    private HostResolver() {
+    }
+
+    /**
+     * Returns the addresses of the host, alternating between IPv6 and IPv4 addresses and
+     * starting with the family the resolver returned first (RFC 8305, section 4).
+     */
+    public static InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sCache) {
+            Entry entry = sCache.get(host);
+            if (entry != null && entry.expires > now) {
+                return entry.addresses.clone();
+            }
+        }
+
+        InetAddress[] addresses = interleave(InetAddress.getAllByName(host));
+        synchronized (sCache) {
+            sCache.put(host, new Entry(addresses, now + CACHE_TTL));
+        }
+        return addresses.clone();
+    }
+
+    /**
+     * Drops the cached addresses of the host.
+     */
+    public static void invalidate(String host) {
+        synchronized (sCache) {
+            sCache.remove(host);
+        }
+    }
+
+    private static InetAddress[] interleave(InetAddress[] addresses) {
+        if (addresses.length == 0) {
+            return addresses;
+        }
+        boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsIpv6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+
+        InetAddress[] result = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(first.size(), second.size()); j++) {
+            if (j < first.size()) {
+                result[i++] = first.get(j);
+            }
+            if (j < second.size()) {
+                result[i++] = second.get(j);
+            }
+        }
+        return result;
+    }
+}
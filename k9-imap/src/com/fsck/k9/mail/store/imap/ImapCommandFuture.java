@@ -0,0 +1,119 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+
+/**
+ * Result of a command submitted to an {@link ImapCommandPipeline}: the untagged responses
+ * attributed to the command followed by its tagged response, like
+ * {@code ImapConnection.executeSimpleCommand()} returns them.
+ */
+public class ImapCommandFuture implements Future<List<ImapResponse>> {
+    private final String mTag;
+    private final String mCommandToLog;
+    private final List<ImapResponse> mResponses = new ArrayList<ImapResponse>();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile Exception mException;
+
+    ImapCommandFuture(String tag, String commandToLog) {
+        mTag = tag;
+        mCommandToLog = commandToLog;
+    }
+
+    public String getTag() {
+        return mTag;
+    }
+
+    /**
+     * Waits for the command to complete and returns its responses.
+     *
+     * @throws MessagingException
+     *         If the server didn't answer with OK or the wait was interrupted.
+     * @throws IOException
+     *         If the connection failed before the command completed.
+     */
+    public List<ImapResponse> getResponses() throws IOException, MessagingException {
+        try {
+            mDone.await();
+        } catch (InterruptedException e) {
+            throw new MessagingException("Interrupted while waiting for " + mCommandToLog, e);
+        }
+        if (mException instanceof IOException) {
+            throw (IOException) mException;
+        } else if (mException instanceof MessagingException) {
+            throw (MessagingException) mException;
+        }
+        return mResponses;
+    }
+
+    @Override
+    public List<ImapResponse> get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public List<ImapResponse> get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /**
+     * Commands that have been sent can't be cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    void addResponse(ImapResponse response) {
+        mResponses.add(response);
+    }
+
+    /**
+     * Completes the command with the tagged response.
+     */
+    void complete(ImapResponse response) {
+        mResponses.add(response);
+        if (response.size() < 1 || !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
+            mException = new MessagingException("Command: " + mCommandToLog + "; response: " +
+                    response.toString(), true);
+        }
+        mDone.countDown();
+    }
+
+    void fail(Exception exception) {
+        mException = exception;
+        mDone.countDown();
+    }
+
+    private List<ImapResponse> getResult() throws ExecutionException {
+        if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        return mResponses;
+    }
+}
@@ -0,0 +1,223 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+
+/**
+ * Sends independent commands over an {@link ImapConnection} without waiting for the responses
+ * of the previous ones (RFC 3501, section 5.5).
+ *
+ * <p>
+ * {@link #submit(String)} writes the command and returns immediately; a reader thread matches
+ * the tagged responses to the {@link ImapCommandFuture}s by tag. Untagged responses are passed
+ * to the {@link UntaggedResponseHandler} and attributed to the oldest command still waiting for
+ * its tagged response. On a link with a round trip time of {@code t}, {@code n} commands take
+ * about {@code t} instead of {@code n * t}.
+ * </p>
+ * <p>
+ * Commands are written outside of the lock used for dispatching responses, so the reader keeps
+ * completing commands while a long literal is being sent.
+ * </p>
+ * <p>
+ * Only commands whose result doesn't depend on the order they are processed in, or which the
+ * server processes in order anyway (e.g. SELECT followed by commands on the selected folder),
+ * should be pipelined. Commands that need a command continuation request can't be pipelined;
+ * literals are only accepted if they can be sent as non-synchronizing literals (LITERAL+).
+ * </p>
+ * <p>
+ * The connection must not be used otherwise until the pipeline has been {@link #close()
+ * closed}. If the connection fails, all pending commands fail with the {@link IOException}.
+ * </p>
+ */
+public class ImapCommandPipeline {
+    /**
+     * Receives the untagged responses read by the pipeline, on the reader thread.
+     */
+    public interface UntaggedResponseHandler {
+        void handleUntaggedResponse(ImapResponse response);
+    }
+
+    private final ImapConnection mConnection;
+    private final UntaggedResponseHandler mUntaggedHandler;
+
+    /** Serializes the writes of {@link #submit(String, byte[])}. */
+    private final Object mWriteLock = new Object();
+
+    /** Commands waiting for their tagged response, in the order they were sent. */
+    private final Map<String, ImapCommandFuture> mPending =
+            new LinkedHashMap<String, ImapCommandFuture>();
+
+    private final Thread mReader;
+    private boolean mClosed;
+    private IOException mFailure;
+
+    /**
+     * @param untaggedHandler
+     *         Handler for untagged responses or {@code null} if they are only returned with the
+     *         responses of the commands.
+     */
+    public ImapCommandPipeline(ImapConnection connection,
+            UntaggedResponseHandler untaggedHandler) {
+        mConnection = connection;
+        mUntaggedHandler = untaggedHandler;
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, "ImapCommandPipeline");
+        mReader.setDaemon(true);
+        mReader.start();
+    }
+
+    /**
+     * Sends the command and returns the future for its responses.
+     */
+    public ImapCommandFuture submit(String command) throws IOException, MessagingException {
+        return submit(command, null);
+    }
+
+    /**
+     * Sends a command ending with a literal, e.g. {@code APPEND "SMS" (\Seen)} followed by the
+     * message.
+     *
+     * @param command
+     *         The command without the literal size specification.
+     * @param literal
+     *         The literal or {@code null} if the command has none.
+     */
+    public ImapCommandFuture submit(String command, byte[] literal)
+            throws IOException, MessagingException {
+        String commandToSend = command;
+        if (literal != null) {
+            if (!mConnection.canSendNonSynchronizingLiteral(literal.length)) {
+                throw new MessagingException("Server doesn't accept non-synchronizing literals " +
+                        "of " + literal.length + " bytes");
+            }
+            commandToSend = command + " {" + literal.length + "+}";
+        }
+
+        synchronized (mWriteLock) {
+            // The command is registered before it is sent, so the reader knows the tag when the
+            // response arrives.
+            ImapCommandFuture future;
+            synchronized (this) {
+                if (mClosed) {
+                    throw new MessagingException("Pipeline closed");
+                }
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+                future = new ImapCommandFuture(mConnection.allocateTag(), command);
+                mPending.put(future.getTag(), future);
+                notifyAll();
+            }
+
+            try {
+                mConnection.sendCommand(future.getTag(), commandToSend, false, literal == null);
+                if (literal != null) {
+                    mConnection.sendLiteral(literal);
+                }
+            } catch (IOException e) {
+                // The connection has been closed, the reader fails the other commands.
+                remove(future);
+                throw e;
+            } catch (MessagingException e) {
+                remove(future);
+                throw e;
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Waits for all submitted commands to complete and stops the reader thread. The connection
+     * can be used for synchronous commands again afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mReader.join();
+        } catch (InterruptedException e) {
+            Log.w(K9.LOG_TAG, "Interrupted while closing IMAP command pipeline");
+        }
+    }
+
+    private void readResponses() {
+        while (true) {
+            synchronized (this) {
+                while (mPending.isEmpty() && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep reading, pending commands are only completed by responses
+                    }
+                }
+                if (mPending.isEmpty()) {
+                    return;
+                }
+            }
+
+            ImapResponse response;
+            try {
+                response = mConnection.readResponse();
+            } catch (IOException e) {
+                failPending(e);
+                return;
+            } catch (MessagingException e) {
+                failPending(new IOException(e.toString()));
+                return;
+            }
+            if (response.getTag() == null && !response.isContinuationRequested() &&
+                    mUntaggedHandler != null) {
+                mUntaggedHandler.handleUntaggedResponse(response);
+            }
+            dispatch(response);
+        }
+    }
+
+    private synchronized void remove(ImapCommandFuture future) {
+        mPending.remove(future.getTag());
+    }
+
+    private synchronized void dispatch(ImapResponse response) {
+        String tag = response.getTag();
+        if (tag == null) {
+            if (response.isContinuationRequested()) {
+                Log.w(K9.LOG_TAG, "Unexpected continuation request in pipeline: " + response);
+                return;
+            }
+            // Untagged responses belong to the oldest pending command
+            if (!mPending.isEmpty()) {
+                mPending.values().iterator().next().addResponse(response);
+            }
+            return;
+        }
+
+        ImapCommandFuture future = mPending.remove(tag);
+        if (future == null) {
+            Log.w(K9.LOG_TAG, "Got tagged response for unknown command in pipeline: " + response);
+            return;
+        }
+        future.complete(response);
+    }
+
+    private synchronized void failPending(IOException e) {
+        mFailure = e;
+        for (ImapCommandFuture future : mPending.values()) {
+            future.fail(e);
+        }
+        mPending.clear();
+    }
+}
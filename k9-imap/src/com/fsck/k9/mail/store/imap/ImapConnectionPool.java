@@ -0,0 +1,201 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+
+/**
+ * Pool of idle, authenticated IMAP connections.
+ *
+ * <p>
+ * Checking a connection out and in doesn't take a lock. A connection that has been idle for less
+ * than {@link #VALIDATION_IDLE_TIME} is handed out as is; only connections idle for longer are
+ * checked with a NOOP command first, so a busy sync doesn't pay a round trip per folder
+ * operation. Connections idle for more than {@link #MAX_IDLE_TIME} are closed by a background
+ * task before the server drops them, as are connections exceeding the maximum pool size.
+ * </p>
+ */
+public class ImapConnectionPool {
+    /** Milliseconds a connection may be idle before it's checked with NOOP. */
+    private static final long VALIDATION_IDLE_TIME = 10 * 1000;
+
+    /**
+     * Milliseconds a connection may be idle before it's closed. Well below the 30 minute
+     * autologout timer of RFC 3501.
+     */
+    private static final long MAX_IDLE_TIME = 5 * 60 * 1000;
+
+    private static final ScheduledExecutorService sEvictionExecutor =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ImapConnectionPool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static class Entry {
+        final ImapConnection connection;
+        final long releaseTime;
+
+        Entry(ImapConnection connection, long releaseTime) {
+            this.connection = connection;
+            this.releaseTime = releaseTime;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> mIdle = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+    private final AtomicBoolean mEvictionScheduled = new AtomicBoolean();
+    private volatile int mMaxSize;
+
+    private final AtomicLong mCheckouts = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+    private final AtomicLong mValidations = new AtomicLong();
+    private final AtomicLong mValidationFailures = new AtomicLong();
+    private final AtomicLong mValidationMillis = new AtomicLong();
+    private final AtomicLong mEvicted = new AtomicLong();
+
+    private final Runnable mEvictionTask = new Runnable() {
+        @Override
+        public void run() {
+            mEvictionScheduled.set(false);
+            evictIdleConnections();
+            if (mIdleCount.get() > 0) {
+                scheduleEviction();
+            }
+        }
+    };
+
+    /**
+     * @param maxSize
+     *         Maximum number of idle connections kept in the pool.
+     */
+    public ImapConnectionPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns a pooled connection that is known to work or {@code null} if there is none.
+     */
+    public ImapConnection checkout() {
+        mCheckouts.incrementAndGet();
+        Entry entry;
+        while ((entry = mIdle.poll()) != null) {
+            mIdleCount.decrementAndGet();
+            ImapConnection connection = entry.connection;
+            long idleTime = SystemClock.elapsedRealtime() - entry.releaseTime;
+            if (!connection.isOpen()) {
+                continue;
+            }
+            if (idleTime > MAX_IDLE_TIME) {
+                evict(connection);
+                continue;
+            }
+            if (idleTime > VALIDATION_IDLE_TIME && !validate(connection)) {
+                continue;
+            }
+            mReused.incrementAndGet();
+            return connection;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a connection to the pool. Connections that aren't open are ignored, connections
+     * exceeding the maximum pool size are closed.
+     */
+    public void release(ImapConnection connection) {
+        if (connection == null || !connection.isOpen()) {
+            return;
+        }
+        if (mIdleCount.incrementAndGet() > mMaxSize) {
+            mIdleCount.decrementAndGet();
+            evict(connection);
+            return;
+        }
+        mIdle.offer(new Entry(connection, SystemClock.elapsedRealtime()));
+        scheduleEviction();
+    }
+
+    /**
+     * Returns the connections currently in the pool. They must not be used.
+     */
+    public List<ImapConnection> getIdleConnections() {
+        List<ImapConnection> connections = new ArrayList<ImapConnection>();
+        for (Entry entry : mIdle) {
+            connections.add(entry.connection);
+        }
+        return connections;
+    }
+
+    public ConnectionPoolStatistics getStatistics() {
+        return new ConnectionPoolStatistics(mCheckouts.get(), mReused.get(), mValidations.get(),
+                mValidationFailures.get(), mValidationMillis.get(), mEvicted.get());
+    }
+
+    private boolean validate(ImapConnection connection) {
+        mValidations.incrementAndGet();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            connection.executeSimpleCommand("NOOP");
+            return true;
+        } catch (IOException ioe) {
+            mValidationFailures.incrementAndGet();
+            connection.close();
+            return false;
+        } catch (MessagingException me) {
+            mValidationFailures.incrementAndGet();
+            connection.close();
+            return false;
+        } finally {
+            mValidationMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    private void evict(ImapConnection connection) {
+        mEvicted.incrementAndGet();
+        connection.close();
+    }
+
+    private void evictIdleConnections() {
+        long now = SystemClock.elapsedRealtime();
+        for (Entry entry : mIdle) {
+            // remove() fails if the entry was checked out in the meantime
+            if (now - entry.releaseTime > MAX_IDLE_TIME && mIdle.remove(entry)) {
+                mIdleCount.decrementAndGet();
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Closing IMAP connection idle for more than " +
+                            MAX_IDLE_TIME + " ms");
+                }
+                evict(entry.connection);
+            }
+        }
+    }
+
+    private void scheduleEviction() {
+        if (mEvictionScheduled.compareAndSet(false, true)) {
+            sEvictionExecutor.schedule(mEvictionTask, MAX_IDLE_TIME, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+
+/**
+ * What a connection learned about the server before doing useful work: the capabilities
+ * announced before authentication and the personal namespace prefix and hierarchy delimiter.
+ *
+ * <p>
+ * The results are only valid as long as the server greets with the same
+ * {@link #getFingerprint(ImapResponse) fingerprint} and announces the same capabilities. When
+ * the greeting doesn't contain the capabilities, the cached ones are used without asking the
+ * server, so the results also expire after {@link #MAX_AGE}.
+ * </p>
+ */
+public class ImapDiscovery {
+    /**
+     * Time in milliseconds after which the results have to be discovered again.
+     */
+    public static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private final String mFingerprint;
+    private final Set<String> mCapabilities;
+    private final String mPathPrefix;
+    private final String mPathDelimiter;
+    private final long mTimestamp;
+
+    /**
+     * @param capabilities
+     *         Upper case capabilities.
+     * @param pathPrefix
+     *         The detected prefix or {@code null} if it's configured or unknown.
+     * @param pathDelimiter
+     *         The detected delimiter or {@code null} if unknown.
+     * @param timestamp
+     *         The time of the discovery as returned by {@link System#currentTimeMillis()}.
+     */
+    public ImapDiscovery(String fingerprint, Set<String> capabilities, String pathPrefix,
+            String pathDelimiter, long timestamp) {
+        mFingerprint = fingerprint;
+        mCapabilities = Collections.unmodifiableSet(new TreeSet<String>(capabilities));
+        mPathPrefix = pathPrefix;
+        mPathDelimiter = pathDelimiter;
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Returns the key identifying the account on the server.
+     */
+    public static String getKey(String host, int port, String username) {
+        return host + ":" + port + ":" + username;
+    }
+
+    /**
+     * Returns the fingerprint of the server greeting. If the greeting contains the capabilities,
+     * the fingerprint is the sorted list of them. Otherwise it is the greeting text without words
+     * containing digits, which are usually addresses, session IDs or timestamps.
+     */
+    public static String getFingerprint(ImapResponse greeting) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (Object part : greeting) {
+            if (part instanceof ImapList && !((ImapList) part).isEmpty() &&
+                    "CAPABILITY".equalsIgnoreCase(String.valueOf(((ImapList) part).get(0)))) {
+                Set<String> capabilities = new TreeSet<String>();
+                for (Object capability : (ImapList) part) {
+                    capabilities.add(String.valueOf(capability).toUpperCase(Locale.US));
+                }
+                return "CAPABILITY " + capabilities;
+            }
+        }
+
+        for (Object part : greeting) {
+            if (!(part instanceof String)) {
+                continue;
+            }
+            for (String word : ((String) part).split(" ")) {
+                if (!word.matches(".*[0-9].*")) {
+                    if (fingerprint.length() > 0) {
+                        fingerprint.append(' ');
+                    }
+                    fingerprint.append(word);
+                }
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public Set<String> getCapabilities() {
+        return mCapabilities;
+    }
+
+    public String getPathPrefix() {
+        return mPathPrefix;
+    }
+
+    public String getPathDelimiter() {
+        return mPathDelimiter;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Returns {@code true} if the results are older than {@link #MAX_AGE} or from the future,
+     * i.e. the clock has been changed.
+     */
+    public boolean isExpired(long now) {
+        return now < mTimestamp || now - mTimestamp > MAX_AGE;
+    }
+
+    /**
+     * Returns the results in a form suitable for {@link #parse(String)}.
+     */
+    public String serialize() {
+        return serializeResults() + '\n' + mTimestamp;
+    }
+
+    private String serializeResults() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mFingerprint).append('\n');
+        for (String capability : mCapabilities) {
+            sb.append(capability).append(' ');
+        }
+        sb.append('\n');
+        // A leading '+' distinguishes an empty prefix from an unknown one
+        sb.append((mPathPrefix == null) ? "" : "+" + mPathPrefix).append('\n');
+        sb.append((mPathDelimiter == null) ? "" : "+" + mPathDelimiter);
+        return sb.toString();
+    }
+
+    /**
+     * Parses the result of {@link #serialize()} and returns {@code null} if it's malformed.
+     */
+    public static ImapDiscovery parse(String serialized) {
+        String[] fields = serialized.split("\n", -1);
+        if (fields.length != 5) {
+            return null;
+        }
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(fields[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        Set<String> capabilities = new TreeSet<String>();
+        for (String capability : fields[1].split(" ")) {
+            if (capability.length() > 0) {
+                capabilities.add(capability);
+            }
+        }
+        return new ImapDiscovery(fields[0], capabilities, parseOptional(fields[2]),
+                parseOptional(fields[3]), timestamp);
+    }
+
+    private static String parseOptional(String field) {
+        return field.startsWith("+") ? field.substring(1) : null;
+    }
+
+    /**
+     * Compares the results, ignoring the time of the discovery.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImapDiscovery)) {
+            return false;
+        }
+        return serializeResults().equals(((ImapDiscovery) o).serializeResults());
+    }
+
+    @Override
+    public int hashCode() {
+        return serializeResults().hashCode();
+    }
+}
@@ -0,0 +1,16 @@
+package com.fsck.k9.mail.store.imap;
+
+/**
+ * Persistent storage for {@link ImapDiscovery} results, so new connections can skip the
+ * CAPABILITY, NAMESPACE and LIST commands used to discover the server.
+ */
+public interface ImapDiscoveryCache {
+    /**
+     * Returns the discovery results stored for the key or {@code null}.
+     */
+    ImapDiscovery get(String key);
+
+    void put(String key, ImapDiscovery discovery);
+
+    void remove(String key);
+}
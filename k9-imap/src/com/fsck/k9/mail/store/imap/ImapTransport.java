@@ -0,0 +1,30 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+
+/**
+ * The byte stream an IMAP connection is running on.
+ *
+ * @see SocketImapTransport
+ * @see NioSslImapTransport
+ */
+public interface ImapTransport {
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Sets the read timeout in milliseconds, 0 waits forever.
+     */
+    void setSoTimeout(int timeout) throws SocketException;
+
+    /**
+     * Returns whether the transport is connected and hasn't been closed.
+     */
+    boolean isConnected();
+
+    void close();
+}
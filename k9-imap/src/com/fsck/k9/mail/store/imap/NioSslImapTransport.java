@@ -0,0 +1,542 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * {@link ImapTransport} running TLS through an {@link SSLEngine} over a non-blocking
+ * {@link SocketChannel}.
+ *
+ * <p>
+ * Data written to the output stream is collected in a buffer of the size of a TLS record and
+ * only encrypted when the buffer is full or the stream is flushed, so the caller decides how
+ * commands and literals are batched into records. Records of a long write, e.g. a literal, are
+ * collected and sent with a single write to the channel once no further record fits into the
+ * network buffer or the stream is flushed. The network and application buffers are direct buffers taken from a
+ * {@link DirectBufferPool}.
+ * </p>
+ * <p>
+ * Reading and writing can happen on different threads, e.g. to end an IDLE command while
+ * another thread waits for responses.
+ * </p>
+ */
+public class NioSslImapTransport implements ImapTransport {
+    /** Number of TLS records collected before they are written to the channel. */
+    private static final int RECORDS_PER_WRITE = 4;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel mChannel;
+    private final SSLEngine mEngine;
+    private final Selector mReadSelector;
+    private final Selector mWriteSelector;
+
+    private final Object mReadLock = new Object();
+    private final Object mWriteLock = new Object();
+
+    /** Encrypted data read from the channel, in write mode. */
+    private ByteBuffer mNetIn;
+    /** Decrypted data not yet returned to the reader, in read mode. */
+    private ByteBuffer mAppIn;
+    /** Encrypted data to be written to the channel, in write mode. */
+    private ByteBuffer mNetOut;
+    /** Data written by the caller that hasn't been encrypted yet, in write mode. */
+    private ByteBuffer mAppOut;
+
+    private volatile int mSoTimeout;
+    private volatile boolean mClosed;
+
+    private final InputStream mInputStream = new TransportInputStream();
+    private final OutputStream mOutputStream = new TransportOutputStream();
+
+    private NioSslImapTransport(SocketChannel channel, SSLEngine engine) throws IOException {
+        mChannel = channel;
+        mEngine = engine;
+        mReadSelector = Selector.open();
+        mWriteSelector = Selector.open();
+        mChannel.register(mReadSelector, SelectionKey.OP_READ);
+        mChannel.register(mWriteSelector, SelectionKey.OP_WRITE);
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+        mNetIn = DirectBufferPool.acquire(packetSize);
+        mAppIn = DirectBufferPool.acquire(applicationSize);
+        mAppIn.flip();
+        mNetOut = DirectBufferPool.acquire(packetSize * RECORDS_PER_WRITE);
+        mAppOut = DirectBufferPool.acquire(applicationSize);
+    }
+
+    /**
+     * Creates sockets backed by a {@link SocketChannel}, to be connected in blocking mode and then
+     * passed to {@link #open(SocketChannel, int, SSLEngine)}.
+     */
+    public static final SocketFactory SOCKET_FACTORY = new SocketFactory() {
+        @Override
+        public Socket createSocket() throws IOException {
+            return SocketChannel.open().socket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return createSocket(InetAddress.getByName(host), port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return createSocket(InetAddress.getByName(host), port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return connect(createSocket(), null, new InetSocketAddress(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return connect(createSocket(), new InetSocketAddress(localAddress, localPort),
+                    new InetSocketAddress(address, port));
+        }
+
+        private Socket connect(Socket socket, InetSocketAddress localAddress,
+                InetSocketAddress address) throws IOException {
+            try {
+                if (localAddress != null) {
+                    socket.bind(localAddress);
+                }
+                socket.connect(address);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    };
+
+    /**
+     * Creates a transport on a connected channel, e.g. the channel of a socket created by
+     * {@link #SOCKET_FACTORY}. {@link #startHandshake()} has to be called before the streams are
+     * used. The channel is closed if the transport can't be created.
+     *
+     * @param engine
+     *         A client mode engine for the host.
+     */
+    public static NioSslImapTransport open(SocketChannel channel, int readTimeout,
+            SSLEngine engine) throws IOException {
+        try {
+            // Writes are coalesced by the transport
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+
+            NioSslImapTransport transport = new NioSslImapTransport(channel, engine);
+            transport.setSoTimeout(readTimeout);
+            return transport;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public SSLSession getSession() {
+        return mEngine.getSession();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        mSoTimeout = timeout;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !mClosed && mChannel.isConnected();
+    }
+
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        // A writer waiting for the channel gives up the write lock once it sees the transport
+        // closed, so close_notify doesn't wait for the write timeout.
+        mWriteSelector.wakeup();
+        try {
+            synchronized (mWriteLock) {
+                mEngine.closeOutbound();
+                while (!mEngine.isOutboundDone()) {
+                    if (mEngine.wrap(EMPTY, mNetOut).bytesProduced() == 0) {
+                        break;
+                    }
+                }
+                // Only what the socket accepts right away, the channel is non-blocking
+                mNetOut.flip();
+                try {
+                    mChannel.write(mNetOut);
+                } finally {
+                    mNetOut.compact();
+                }
+            }
+        } catch (IOException e) {
+            // Can't send close_notify, the connection is closed anyway.
+        }
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        // Wakes up blocked readers and writers
+        closeQuietly(mReadSelector);
+        closeQuietly(mWriteSelector);
+
+        synchronized (mReadLock) {
+            DirectBufferPool.release(mNetIn);
+            DirectBufferPool.release(mAppIn);
+            mNetIn = null;
+            mAppIn = null;
+        }
+        synchronized (mWriteLock) {
+            DirectBufferPool.release(mNetOut);
+            DirectBufferPool.release(mAppOut);
+            mNetOut = null;
+            mAppOut = null;
+        }
+    }
+
+    /**
+     * Performs the TLS handshake and waits for it to finish.
+     */
+    public void startHandshake() throws IOException {
+        mEngine.beginHandshake();
+        HandshakeStatus status = mEngine.getHandshakeStatus();
+        while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_TASK: {
+                    runDelegatedTasks();
+                    break;
+                }
+                case NEED_WRAP: {
+                    synchronized (mWriteLock) {
+                        wrap(EMPTY, true);
+                    }
+                    break;
+                }
+                case NEED_UNWRAP: {
+                    synchronized (mReadLock) {
+                        if (unwrap() == null) {
+                            throw new SSLException("Connection closed during handshake");
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    throw new SSLException("Unexpected handshake status " + status);
+                }
+            }
+            status = mEngine.getHandshakeStatus();
+        }
+    }
+
+    /**
+     * Decrypts the next record into {@link #mAppIn}, reading from the channel if necessary.
+     * Must be called with {@link #mReadLock} held.
+     *
+     * @return The result or {@code null} if the connection has been closed.
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            checkNotClosed();
+            mNetIn.flip();
+            mAppIn.compact();
+            SSLEngineResult result;
+            try {
+                result = mEngine.unwrap(mNetIn, mAppIn);
+            } finally {
+                mNetIn.compact();
+                mAppIn.flip();
+            }
+
+            Status status = result.getStatus();
+            if (status == Status.BUFFER_UNDERFLOW) {
+                int packetSize = mEngine.getSession().getPacketBufferSize();
+                if (mNetIn.capacity() < packetSize) {
+                    mNetIn = enlarge(mNetIn, packetSize, false);
+                }
+                if (readNetIn() == -1) {
+                    return null;
+                }
+                continue;
+            } else if (status == Status.BUFFER_OVERFLOW) {
+                mAppIn = enlarge(mAppIn, mEngine.getSession().getApplicationBufferSize(), true);
+                continue;
+            } else if (status == Status.CLOSED) {
+                return null;
+            }
+
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            if (mEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                // Renegotiation or post-handshake messages
+                synchronized (mWriteLock) {
+                    wrap(EMPTY, true);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Encrypts the remaining data of the buffer into {@link #mNetOut}. Must be called with
+     * {@link #mWriteLock} held.
+     *
+     * @param flush
+     *         Whether to write the records to the channel. Otherwise they are only written once
+     *         {@link #mNetOut} can't hold another record.
+     */
+    private void wrap(ByteBuffer source, boolean flush) throws IOException {
+        checkNotClosed();
+        do {
+            SSLEngineResult result = mEngine.wrap(source, mNetOut);
+            Status status = result.getStatus();
+            if (status == Status.BUFFER_OVERFLOW) {
+                if (mNetOut.position() == 0) {
+                    mNetOut = enlarge(mNetOut, mEngine.getSession().getPacketBufferSize(), false);
+                } else {
+                    writeNetOut();
+                }
+                continue;
+            } else if (status == Status.CLOSED) {
+                throw new SSLException("Connection closed");
+            }
+
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+        } while (source.hasRemaining());
+        if (flush || mNetOut.remaining() < mEngine.getSession().getPacketBufferSize()) {
+            writeNetOut();
+        }
+    }
+
+    private int readNetIn() throws IOException {
+        while (true) {
+            int count = mChannel.read(mNetIn);
+            if (count != 0) {
+                return count;
+            }
+            await(mReadSelector, mSoTimeout, "Read timed out");
+        }
+    }
+
+    private void writeNetOut() throws IOException {
+        mNetOut.flip();
+        try {
+            while (mNetOut.hasRemaining()) {
+                if (mChannel.write(mNetOut) == 0) {
+                    await(mWriteSelector, mSoTimeout, "Write timed out");
+                }
+            }
+        } finally {
+            mNetOut.compact();
+        }
+    }
+
+    private void await(Selector selector, int timeout, String timeoutMessage)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            int selected = selector.select(timeout);
+            selector.selectedKeys().clear();
+            if (selected == 0 && timeout > 0 &&
+                    System.currentTimeMillis() - start >= timeout) {
+                throw new SocketTimeoutException(timeoutMessage);
+            }
+        } catch (ClosedSelectorException e) {
+            throw new SocketException("Connection closed");
+        }
+        checkNotClosed();
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void checkNotClosed() throws SocketException {
+        if (mClosed) {
+            throw new SocketException("Connection closed");
+        }
+    }
+
+    /**
+     * Replaces the buffer by a larger one, keeping its content.
+     *
+     * @param readMode
+     *         Whether the buffer is in read mode, i.e. flipped.
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimumCapacity, boolean readMode) {
+        ByteBuffer larger = DirectBufferPool.acquire(
+                Math.max(minimumCapacity, buffer.capacity() * 2));
+        if (!readMode) {
+            buffer.flip();
+        }
+        larger.put(buffer);
+        if (readMode) {
+            larger.flip();
+        }
+        DirectBufferPool.release(buffer);
+        return larger;
+    }
+
+    private static void closeQuietly(Selector selector) {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private class TransportInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            synchronized (mReadLock) {
+                if (!fill()) {
+                    return -1;
+                }
+                return mAppIn.get() & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            synchronized (mReadLock) {
+                if (!fill()) {
+                    return -1;
+                }
+                int count = Math.min(length, mAppIn.remaining());
+                mAppIn.get(b, offset, count);
+                return count;
+            }
+        }
+
+        /**
+         * Decrypts records until {@link #mAppIn} has data. Must be called with
+         * {@link #mReadLock} held.
+         *
+         * @return {@code false} if the connection has been closed.
+         */
+        private boolean fill() throws IOException {
+            checkNotClosed();
+            while (!mAppIn.hasRemaining()) {
+                if (unwrap() == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int available() {
+            synchronized (mReadLock) {
+                return (mAppIn == null) ? 0 : mAppIn.remaining();
+            }
+        }
+
+        @Override
+        public void close() {
+            NioSslImapTransport.this.close();
+        }
+    }
+
+    private class TransportOutputStream extends OutputStream {
+        @Override
+        public void write(int oneByte) throws IOException {
+            synchronized (mWriteLock) {
+                checkNotClosed();
+                if (!mAppOut.hasRemaining()) {
+                    flushAppOut(false);
+                }
+                mAppOut.put((byte) oneByte);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            synchronized (mWriteLock) {
+                checkNotClosed();
+                while (length > 0) {
+                    if (!mAppOut.hasRemaining()) {
+                        flushAppOut(false);
+                    }
+                    int count = Math.min(length, mAppOut.remaining());
+                    mAppOut.put(b, offset, count);
+                    offset += count;
+                    length -= count;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mWriteLock) {
+                checkNotClosed();
+                if (mAppOut.position() > 0) {
+                    flushAppOut(true);
+                } else if (mNetOut.position() > 0) {
+                    writeNetOut();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            NioSslImapTransport.this.close();
+        }
+
+        private void flushAppOut(boolean flush) throws IOException {
+            mAppOut.flip();
+            try {
+                wrap(mAppOut, flush);
+            } finally {
+                mAppOut.clear();
+            }
+        }
+    }
+}
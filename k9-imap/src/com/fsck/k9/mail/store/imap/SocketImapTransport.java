@@ -0,0 +1,70 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * {@link ImapTransport} using a plain or SSL {@link Socket}.
+ */
+public class SocketImapTransport implements ImapTransport {
+    private final Socket mSocket;
+
+    public SocketImapTransport(Socket socket) {
+        mSocket = socket;
+    }
+
+    /**
+     * Connects the given unconnected socket.
+     *
+     * @param socketBufferSize
+     *         Size of the kernel send and receive buffers or 0 to use the system default.
+     */
+    public static SocketImapTransport connect(Socket socket, SocketAddress address,
+            int connectTimeout, int socketBufferSize) throws IOException {
+        if (socketBufferSize > 0) {
+            // Has to be set before connecting for the TCP window scale to take it into account
+            socket.setReceiveBufferSize(socketBufferSize);
+            socket.setSendBufferSize(socketBufferSize);
+        }
+        socket.connect(address, connectTimeout);
+        return new SocketImapTransport(socket);
+    }
+
+    /**
+     * Returns the socket, e.g. to layer TLS over it for STARTTLS.
+     */
+    public Socket getSocket() {
+        return mSocket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        mSocket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mSocket.isConnected() && !mSocket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(mSocket);
+    }
+}
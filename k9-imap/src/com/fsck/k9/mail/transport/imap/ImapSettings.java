@@ -4,6 +4,9 @@ import com.fsck.k9.mail.AuthType;
 import com.fsck.k9.mail.ConnectionSecurity;
 import com.fsck.k9.mail.store.ImapStore;
 import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+import com.fsck.k9.mail.store.imap.CompressionStatistics;
+import com.fsck.k9.mail.store.imap.ConnectionStatistics;
+import com.fsck.k9.mail.store.imap.ImapDiscoveryCache;
 
 /**
  * Settings source for IMAP. Implemented in order to remove coupling between {@link ImapStore} and {@link ImapConnection}.
@@ -23,6 +26,23 @@ public interface ImapSettings {
 
     boolean useCompression(int type);
 
+    /**
+     * Returns the statistics that connections add their compression byte counts to when they
+     * are closed.
+     */
+    CompressionStatistics getCompressionStatistics();
+
+    /**
+     * Returns the statistics that connections add their setup times to when they are opened.
+     */
+    ConnectionStatistics getConnectionStatistics();
+
+    /**
+     * Returns the cache for the results of server discovery or {@code null} if discovery
+     * always has to be done.
+     */
+    ImapDiscoveryCache getDiscoveryCache();
+
     String getPathPrefix();
 
     void setPathPrefix(String prefix);
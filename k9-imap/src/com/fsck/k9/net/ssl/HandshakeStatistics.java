@@ -0,0 +1,83 @@
+package com.fsck.k9.net.ssl;
+
+import java.util.Locale;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Number and duration of TLS handshakes, split into full and resumed (abbreviated) handshakes.
+ */
+public class HandshakeStatistics {
+    private int mFullHandshakes;
+    private long mFullHandshakeMillis;
+    private int mResumedHandshakes;
+    private long mResumedHandshakeMillis;
+
+    /**
+     * Records a finished handshake.
+     *
+     * @param session
+     *         The session established by the handshake.
+     * @param startTime
+     *         Wall clock time in milliseconds at which the handshake was started.
+     * @param durationMillis
+     *         Duration of the handshake.
+     */
+    public synchronized void add(SSLSession session, long startTime, long durationMillis) {
+        // A resumed session was created by an earlier handshake
+        if (session.getCreationTime() < startTime) {
+            mResumedHandshakes++;
+            mResumedHandshakeMillis += durationMillis;
+        } else {
+            mFullHandshakes++;
+            mFullHandshakeMillis += durationMillis;
+        }
+    }
+
+    public synchronized void reset() {
+        mFullHandshakes = 0;
+        mFullHandshakeMillis = 0;
+        mResumedHandshakes = 0;
+        mResumedHandshakeMillis = 0;
+    }
+
+    public synchronized int getFullHandshakes() {
+        return mFullHandshakes;
+    }
+
+    public synchronized int getResumedHandshakes() {
+        return mResumedHandshakes;
+    }
+
+    /**
+     * Returns the average duration of full handshakes in milliseconds or 0 if there were none.
+     */
+    public synchronized long getAverageFullHandshakeMillis() {
+        return (mFullHandshakes == 0) ? 0 : mFullHandshakeMillis / mFullHandshakes;
+    }
+
+    /**
+     * Returns the average duration of resumed handshakes in milliseconds or 0 if there were none.
+     */
+    public synchronized long getAverageResumedHandshakeMillis() {
+        return (mResumedHandshakes == 0) ? 0 : mResumedHandshakeMillis / mResumedHandshakes;
+    }
+
+    /**
+     * Returns the estimated time saved by resuming sessions instead of doing full handshakes.
+     */
+    public synchronized long getMillisSaved() {
+        if (mFullHandshakes == 0) {
+            return 0;
+        }
+        return mResumedHandshakes *
+                Math.max(0, getAverageFullHandshakeMillis() - getAverageResumedHandshakeMillis());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d full handshakes (avg %d ms), %d resumed (avg %d ms), " +
+                "~%d ms saved", mFullHandshakes, getAverageFullHandshakeMillis(),
+                mResumedHandshakes, getAverageResumedHandshakeMillis(), getMillisSaved());
+    }
+}
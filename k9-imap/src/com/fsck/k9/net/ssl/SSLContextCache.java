@@ -0,0 +1,88 @@
+package com.fsck.k9.net.ssl;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Process-wide cache of {@link SSLContext}s per host, port and trust manager.
+ *
+ * <p>
+ * Initializing a context seeds a new {@link SecureRandom}, and every context has its own client
+ * session cache. Reusing the context lets later connections to the same server resume the TLS
+ * session (abbreviated handshake) instead of doing a full handshake with certificate
+ * verification.
+ * </p>
+ */
+public class SSLContextCache {
+    /** Number of sessions kept per context. Usually there's only one server per context. */
+    private static final int SESSION_CACHE_SIZE = 8;
+
+    /**
+     * Seconds a session may be resumed by the client. Servers usually expire sessions earlier,
+     * but this shouldn't be the limit for a sync interval of several hours.
+     */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static final Map<String, Entry> sContexts = new HashMap<String, Entry>();
+
+    private static final HandshakeStatistics sHandshakeStatistics = new HandshakeStatistics();
+
+    private static class Entry {
+        final X509TrustManager trustManager;
+        final SSLContext sslContext;
+
+        Entry(X509TrustManager trustManager, SSLContext sslContext) {
+            this.trustManager = trustManager;
+            this.sslContext = sslContext;
+        }
+    }
+
+    private SSLContextCache() {
+    }
+
+    /**
+     * Returns the context for the given server, creating it if there's none yet or if it was
+     * created for a different trust manager.
+     */
+    public static synchronized SSLContext get(String host, int port,
+            X509TrustManager trustManager) throws NoSuchAlgorithmException,
+            KeyManagementException {
+        String key = host + ":" + port;
+        Entry entry = sContexts.get(key);
+        if (entry == null || entry.trustManager != trustManager) {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] { trustManager }, new SecureRandom());
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+            }
+            entry = new Entry(trustManager, sslContext);
+            sContexts.put(key, entry);
+        }
+        return entry.sslContext;
+    }
+
+    /**
+     * Drops the context of the given server, e.g. because the trusted certificate changed and
+     * existing sessions must not be resumed.
+     */
+    public static synchronized void remove(String host, int port) {
+        sContexts.remove(host + ":" + port);
+    }
+
+    /**
+     * Returns the statistics of all TLS handshakes done with cached contexts.
+     */
+    public static HandshakeStatistics getHandshakeStatistics() {
+        return sHandshakeStatistics;
+    }
+}
@@ -5,6 +5,7 @@ import android.util.Log;
 import com.fsck.k9.K9;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
@@ -131,6 +132,19 @@ public class TrustedSocketFactory {
         return socket;
     }
 
+    public static SSLEngine createSSLEngine(SSLContext sslContext, String host, int port) {
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (ENABLED_CIPHERS != null) {
+            engine.setEnabledCipherSuites(ENABLED_CIPHERS);
+        }
+        if (ENABLED_PROTOCOLS != null) {
+            engine.setEnabledProtocols(ENABLED_PROTOCOLS);
+        }
+
+        return engine;
+    }
+
     private static void hardenSocket(SSLSocket sock) {
         if (ENABLED_CIPHERS != null) {
             sock.setEnabledCipherSuites(ENABLED_CIPHERS);
@@ -16,6 +16,7 @@ import org.apache.commons.io.IOUtils;
 import android.util.Log;
 
 import com.fsck.k9.K9;
+import com.fsck.k9.net.ssl.SSLContextCache;
 
 public class LocalKeyStore {
     private static final int KEY_STORE_FILE_VERSION = 1;
@@ -114,6 +115,8 @@ public class LocalKeyStore {
                     "Failed to add certificate to local key store", e);
         }
         writeCertificateFile();
+        // Sessions established with the previous certificate must not be resumed
+        SSLContextCache.remove(host, port);
     }
 
     private void writeCertificateFile() throws CertificateException {
@@ -166,6 +169,7 @@ public class LocalKeyStore {
         try {
             mKeyStore.deleteEntry(getCertKey(oldHost, oldPort));
             writeCertificateFile();
+            SSLContextCache.remove(oldHost, oldPort);
         } catch (KeyStoreException e) {
             // Ignore: most likely there was no cert. found
         } catch (CertificateException e) {